@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the power of every channel in a few frequency bands (theta, alpha, beta by default)
+ * without running FFTs. Each DFT bin the bands need is kept up to date over a sliding window of
+ * {@code windowFrames} samples with the recursive (sliding) DFT, so each sample costs a complex
+ * multiply-add per bin. Bins are Hann-windowed in the frequency domain from their neighbours, so
+ * the bins next to each band are tracked as well. A slight damping of the recursion keeps
+ * rounding errors from accumulating over long sessions.
+ *
+ * Every {@code frames per publish} samples the band powers (in input units squared) are smoothed
+ * with an exponential average, published for {@code copyBandPowers} and passed to the listener.
+ * Pushing must be done from one thread; nothing is allocated after construction.
+ */
+public class BandPowerTracker {
+    /**
+     * Told about every publication, on the pushing thread.
+     */
+    public interface Listener {
+        /**
+         * @param powers Smoothed power of band {@code b} of channel {@code c} at
+         *               {@code c * bands + b}. Only valid during the call.
+         * @param frame Number of frames pushed so far.
+         */
+        void onBandPowers(BandPowerTracker tracker, float[] powers, long frame);
+    }
+
+    public static final int BAND_THETA = 0;
+    public static final int BAND_ALPHA = 1;
+    public static final int BAND_BETA = 2;
+    //low and high edge in Hz of each band, high edge excluded
+    public static final float[][] DEFAULT_BANDS = {{4, 8}, {8, 13}, {13, 30}};
+
+    //per-sample damping of the recursion, and its value after a whole window
+    private static final double DAMPING = 0.99999;
+
+    private final int mChannels;
+    private final float mSampleRate;
+    private final int mWindow;
+    private final int mBands;
+    private final Listener mListener;
+
+    //the bins tracked, their rotation factors, and each band's range within them
+    private final int[] mBinNumbers;
+    private final double[] mRotateRe;
+    private final double[] mRotateIm;
+    private final double mDampingWindow;
+    private final int[] mBandFirst;
+    private final int[] mBandLast;
+    //Hann window power correction: power = sum |X_hann|^2 * mScale
+    private final double mScale;
+
+    //per channel: the last window of samples (circular) and the bins' running values
+    private final float[] mHistory;
+    private int mHistoryPosition;
+    private final double[] mBinRe;
+    private final double[] mBinIm;
+
+    private final int mFramesPerPublish;
+    private final double mSmoothing;
+    private int mSincePublish;
+    private long mFrames;
+    private final double[] mSmoothed;
+    private final float[] mPublished;
+    private final float[] mListenerPowers;
+    private volatile long mSequence;
+
+    /**
+     * @param windowFrames Length of the sliding window; the bin spacing is the sample rate over
+     *                     this.
+     * @param bands Low and high edge in Hz of each band, e.g. {@code DEFAULT_BANDS}.
+     * @param publishHz How often to publish band powers.
+     * @param smoothingSeconds Time constant of the smoothing, or 0 for none.
+     * @param listener May be null.
+     */
+    public BandPowerTracker(int channels, float sampleRate, int windowFrames, float[][] bands,
+                            float publishHz, float smoothingSeconds, Listener listener) {
+        mChannels = channels;
+        mSampleRate = sampleRate;
+        mWindow = windowFrames;
+        mBands = bands.length;
+        mListener = listener;
+
+        //every bin inside a band plus one each side for the Hann window
+        final boolean[] needed = new boolean[windowFrames / 2 + 2];
+        final int[] first = new int[mBands];
+        final int[] last = new int[mBands];
+        for (int b = 0; b < mBands; b++) {
+            first[b] = Math.max(1, (int) Math.ceil(bands[b][0] * windowFrames / sampleRate));
+            last[b] = Math.min(windowFrames / 2 - 1,
+                    (int) Math.ceil(bands[b][1] * windowFrames / sampleRate) - 1);
+            if (last[b] < first[b]) {
+                throw new IllegalArgumentException("band " + b + " has no bins; use a longer window");
+            }
+            for (int k = first[b] - 1; k <= last[b] + 1; k++) needed[k] = true;
+        }
+        int count = 0;
+        for (boolean n : needed) if (n) count++;
+        mBinNumbers = new int[count];
+        final int[] slot = new int[needed.length];
+        for (int k = 0, i = 0; k < needed.length; k++) {
+            if (needed[k]) {
+                slot[k] = i;
+                mBinNumbers[i++] = k;
+            }
+        }
+        mBandFirst = new int[mBands];
+        mBandLast = new int[mBands];
+        for (int b = 0; b < mBands; b++) {
+            mBandFirst[b] = slot[first[b]];
+            mBandLast[b] = slot[last[b]];
+        }
+        mRotateRe = new double[count];
+        mRotateIm = new double[count];
+        for (int i = 0; i < count; i++) {
+            final double w = 2 * Math.PI * mBinNumbers[i] / windowFrames;
+            mRotateRe[i] = DAMPING * Math.cos(w);
+            mRotateIm[i] = DAMPING * Math.sin(w);
+        }
+        mDampingWindow = Math.pow(DAMPING, windowFrames);
+        //one-sided power of a Hann-windowed bin: 2 |X|^2 / (N * sum(w^2)), sum(w^2) = 3N/8
+        mScale = 16.0 / (3.0 * windowFrames * windowFrames);
+
+        mHistory = new float[channels * windowFrames];
+        mBinRe = new double[channels * count];
+        mBinIm = new double[channels * count];
+
+        mFramesPerPublish = Math.max(1, Math.round(sampleRate / publishHz));
+        mSmoothing = smoothingSeconds <= 0 ? 1
+                : 1 - Math.exp(-mFramesPerPublish / (smoothingSeconds * sampleRate));
+        mSmoothed = new double[channels * mBands];
+        mPublished = new float[channels * mBands];
+        mListenerPowers = new float[channels * mBands];
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getBandCount() {
+        return mBands;
+    }
+
+    /**
+     * @return The number of DFT bins tracked per channel.
+     */
+    public int getTrackedBinCount() {
+        return mBinNumbers.length;
+    }
+
+    /**
+     * @return A counter that changes every time band powers are published.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Forgets the window and the smoothed powers, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        Arrays.fill(mHistory, 0);
+        Arrays.fill(mBinRe, 0);
+        Arrays.fill(mBinIm, 0);
+        Arrays.fill(mSmoothed, 0);
+        mFrames = 0;
+        mSincePublish = 0;
+    }
+
+    /**
+     * Adds {@code count} interleaved frames starting at frame {@code offset}, publishing band
+     * powers whenever a publication interval is complete.
+     */
+    public void push(float[] frames, int offset, int count) {
+        push(frames, offset, count, mChannels, 0);
+    }
+
+    /**
+     * Adds {@code count} frames of a wider stream: this tracker's channels are channels
+     * {@code firstChannel} onwards of frames {@code stride} channels wide.
+     */
+    public void push(float[] frames, int offset, int count, int stride, int firstChannel) {
+        final int bins = mBinNumbers.length;
+        for (int f = 0; f < count; f++) {
+            final int position = mHistoryPosition;
+            final int i = (offset + f) * stride + firstChannel;
+            for (int c = 0; c < mChannels; c++) {
+                final float x = frames[i + c];
+                final int h = c * mWindow + position;
+                //add the new sample, drop the one leaving the window, rotate by one bin step
+                final double delta = x - mDampingWindow * mHistory[h];
+                mHistory[h] = x;
+                for (int k = 0, b = c * bins; k < bins; k++, b++) {
+                    final double re = mBinRe[b] + delta;
+                    final double im = mBinIm[b];
+                    mBinRe[b] = re * mRotateRe[k] - im * mRotateIm[k];
+                    mBinIm[b] = re * mRotateIm[k] + im * mRotateRe[k];
+                }
+            }
+            mHistoryPosition = position + 1 == mWindow ? 0 : position + 1;
+            mFrames++;
+            if (++mSincePublish >= mFramesPerPublish) {
+                mSincePublish = 0;
+                publish();
+            }
+        }
+    }
+
+    /**
+     * Copies the latest smoothed band powers, channel by channel, into {@code dst} at
+     * {@code offset}.
+     *
+     * @return The sequence number of the copy.
+     */
+    public long copyBandPowers(float[] dst, int offset) {
+        synchronized (mPublished) {
+            System.arraycopy(mPublished, 0, dst, offset, mPublished.length);
+            return mSequence;
+        }
+    }
+
+    private void publish() {
+        final int bins = mBinNumbers.length;
+        for (int c = 0; c < mChannels; c++) {
+            final int base = c * bins;
+            for (int b = 0; b < mBands; b++) {
+                double power = 0;
+                for (int k = mBandFirst[b]; k <= mBandLast[b]; k++) {
+                    //Hann window as a three-tap convolution of neighbouring bins
+                    final double re = 0.5 * mBinRe[base + k]
+                            - 0.25 * (mBinRe[base + k - 1] + mBinRe[base + k + 1]);
+                    final double im = 0.5 * mBinIm[base + k]
+                            - 0.25 * (mBinIm[base + k - 1] + mBinIm[base + k + 1]);
+                    power += re * re + im * im;
+                }
+                final int p = c * mBands + b;
+                mSmoothed[p] += (power * mScale - mSmoothed[p]) * mSmoothing;
+            }
+        }
+        synchronized (mPublished) {
+            for (int p = 0; p < mSmoothed.length; p++) mPublished[p] = (float) mSmoothed[p];
+            mSequence++;
+        }
+        if (mListener != null) {
+            for (int p = 0; p < mSmoothed.length; p++) mListenerPowers[p] = (float) mSmoothed[p];
+            mListener.onBandPowers(this, mListenerPowers, mFrames);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.Arrays;
+
+/**
+ * A cascade of biquad sections applied to every channel of a sample stream, e.g. a mains notch
+ * followed by a band-pass. All channels share the coefficients, each has its own state.
+ *
+ * Sections are designed at runtime for the stream's sample rate from the RBJ "Audio EQ
+ * Cookbook" formulas, and run in Direct Form II transposed with double-precision coefficients and
+ * state, which stays stable and quiet even for the narrow, low-frequency sections EEG needs.
+ * Samples are filtered in place in float blocks, either interleaved frames or one channel at a
+ * time; nothing is allocated after construction.
+ *
+ * Sections are set up before processing starts, or from the processing thread. Different
+ * channels may be filtered on different threads.
+ */
+public class BiquadFilterBank {
+    public static final int MAX_SECTIONS = 8;
+
+    public static final double DEFAULT_NOTCH_Q = 30;
+
+    //b0, b1, b2, a1, a2 per section, normalised so that a0 is 1
+    private static final int COEFFS = 5;
+
+    private final int mChannels;
+    private final int mMaxSections;
+    private final double[] mCoeffs;
+    //z1, z2 per section per channel
+    private final double[] mState;
+    private int mSections;
+
+    /**
+     * @param maxSections Most sections the cascade can hold, at most {@code MAX_SECTIONS}.
+     */
+    public BiquadFilterBank(int channels, int maxSections) {
+        if (maxSections < 1 || maxSections > MAX_SECTIONS) {
+            throw new IllegalArgumentException("unsupported section count " + maxSections);
+        }
+        mChannels = channels;
+        mMaxSections = maxSections;
+        mCoeffs = new double[maxSections * COEFFS];
+        mState = new double[channels * maxSections * 2];
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getSectionCount() {
+        return mSections;
+    }
+
+    /**
+     * Removes every section, leaving samples unchanged.
+     */
+    public void clearSections() {
+        mSections = 0;
+        reset();
+    }
+
+    /**
+     * Clears every channel's filter state, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        Arrays.fill(mState, 0);
+    }
+
+    /**
+     * Sets up the usual EEG display chain: a notch at the mains frequency, then a Butterworth
+     * band-pass.
+     *
+     * @param mainsHz 50 or 60, or 0 for no notch.
+     * @param lowHz Band-pass high-pass corner, or 0 for none.
+     * @param highHz Band-pass low-pass corner, or 0 for none.
+     * @param order Butterworth order of each edge: 2, 4, 6 or 8.
+     */
+    public void configure(double sampleRate, double mainsHz, double lowHz, double highHz,
+                          int order) {
+        clearSections();
+        if (mainsHz > 0 && mainsHz < sampleRate / 2) addNotch(sampleRate, mainsHz, DEFAULT_NOTCH_Q);
+        if (lowHz > 0) addButterworth(sampleRate, lowHz, order, true);
+        if (highHz > 0 && highHz < sampleRate / 2) addButterworth(sampleRate, highHz, order, false);
+    }
+
+    /**
+     * Adds a notch at {@code frequency} whose -3 dB width is {@code frequency / q}.
+     */
+    public void addNotch(double sampleRate, double frequency, double q) {
+        final double w0 = 2 * Math.PI * frequency / sampleRate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        addSection(1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Adds a second-order high-pass section; Q 0.7071 is Butterworth.
+     */
+    public void addHighPass(double sampleRate, double frequency, double q) {
+        final double w0 = 2 * Math.PI * frequency / sampleRate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        addSection((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Adds a second-order low-pass section; Q 0.7071 is Butterworth.
+     */
+    public void addLowPass(double sampleRate, double frequency, double q) {
+        final double w0 = 2 * Math.PI * frequency / sampleRate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        addSection((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Adds an even-order Butterworth high- or low-pass as {@code order / 2} sections.
+     */
+    public void addButterworth(double sampleRate, double frequency, int order, boolean highPass) {
+        if (order < 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("unsupported order " + order);
+        }
+        for (int k = 0; k < order / 2; k++) {
+            //the Q of each pole pair of the Butterworth polynomial
+            final double q = 1 / (2 * Math.cos(Math.PI * (2 * k + 1) / (2 * order)));
+            if (highPass) {
+                addHighPass(sampleRate, frequency, q);
+            } else {
+                addLowPass(sampleRate, frequency, q);
+            }
+        }
+    }
+
+    /**
+     * @return The cascade's gain at {@code frequency}.
+     */
+    public double getMagnitude(double sampleRate, double frequency) {
+        final double w = 2 * Math.PI * frequency / sampleRate;
+        //z^-1 and z^-2 on the unit circle
+        final double c1 = Math.cos(w), s1 = -Math.sin(w);
+        final double c2 = Math.cos(2 * w), s2 = -Math.sin(2 * w);
+        double gain = 1;
+        for (int s = 0; s < mSections; s++) {
+            final int k = s * COEFFS;
+            final double nr = mCoeffs[k] + mCoeffs[k + 1] * c1 + mCoeffs[k + 2] * c2;
+            final double ni = mCoeffs[k + 1] * s1 + mCoeffs[k + 2] * s2;
+            final double dr = 1 + mCoeffs[k + 3] * c1 + mCoeffs[k + 4] * c2;
+            final double di = mCoeffs[k + 3] * s1 + mCoeffs[k + 4] * s2;
+            gain *= Math.sqrt((nr * nr + ni * ni) / (dr * dr + di * di));
+        }
+        return gain;
+    }
+
+    /**
+     * Filters {@code count} interleaved frames starting at frame {@code offset}, in place.
+     */
+    public void process(float[] frames, int offset, int count) {
+        final int stride = mChannels;
+        for (int c = 0; c < mChannels; c++) {
+            filter(c, frames, offset * stride + c, count, stride);
+        }
+    }
+
+    /**
+     * Filters channels {@code firstChannel} to {@code firstChannel + channelCount - 1} of
+     * {@code count} interleaved frames, in place. Calls for disjoint channel ranges may run
+     * concurrently.
+     */
+    public void process(float[] frames, int offset, int count, int firstChannel,
+                        int channelCount) {
+        final int stride = mChannels;
+        for (int c = firstChannel; c < firstChannel + channelCount; c++) {
+            filter(c, frames, offset * stride + c, count, stride);
+        }
+    }
+
+    /**
+     * Filters {@code count} samples of one channel, stored contiguously from {@code offset}, in
+     * place.
+     */
+    public void processChannel(int channel, float[] samples, int offset, int count) {
+        filter(channel, samples, offset, count, 1);
+    }
+
+    private void addSection(double b0, double b1, double b2, double a0, double a1, double a2) {
+        if (mSections == mMaxSections) {
+            throw new IllegalStateException("no room for another section");
+        }
+        final int k = mSections * COEFFS;
+        mCoeffs[k] = b0 / a0;
+        mCoeffs[k + 1] = b1 / a0;
+        mCoeffs[k + 2] = b2 / a0;
+        mCoeffs[k + 3] = a1 / a0;
+        mCoeffs[k + 4] = a2 / a0;
+        mSections++;
+    }
+
+    // Runs every section over one channel's samples. Each section makes a full pass with its
+    // coefficients and state in locals, which is faster than all sections per sample.
+    private void filter(int channel, float[] data, int start, int count, int stride) {
+        final int end = start + count * stride;
+        for (int s = 0; s < mSections; s++) {
+            final int k = s * COEFFS;
+            final double b0 = mCoeffs[k], b1 = mCoeffs[k + 1], b2 = mCoeffs[k + 2];
+            final double a1 = mCoeffs[k + 3], a2 = mCoeffs[k + 4];
+            final int z = (channel * mMaxSections + s) * 2;
+            double z1 = mState[z];
+            double z2 = mState[z + 1];
+            for (int i = start; i < end; i += stride) {
+                final double x = data[i];
+                final double y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                data[i] = (float) y;
+            }
+            mState[z] = z1;
+            mState[z + 1] = z2;
+        }
+    }
+}
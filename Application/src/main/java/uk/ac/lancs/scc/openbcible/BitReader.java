@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.IOException;
+
+/**
+ * Reads a bit stream written by {@code BitWriter}. Reusable: {@code reset} it onto new data.
+ */
+public class BitReader {
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mEnd;
+    //bits read ahead, right-aligned
+    private long mBits;
+    private int mCount;
+
+    public void reset(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+        mBits = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Reads {@code bits} bits as an unsigned value (or, for 32 bits, the raw int).
+     *
+     * @param bits 0 to 32.
+     *
+     * @throws IOException If the data runs out.
+     */
+    public int read(int bits) throws IOException {
+        if (bits == 0) return 0;
+        while (mCount < bits) {
+            if (mPosition >= mEnd) throw new IOException("truncated bit stream");
+            mBits = (mBits << 8) | (mBuffer[mPosition++] & 0xFF);
+            mCount += 8;
+        }
+        mCount -= bits;
+        return (int) ((mBits >>> mCount) & (0xFFFFFFFFL >>> (32 - bits)));
+    }
+
+    /**
+     * Counts one bits up to and including the terminating zero, or until {@code limit} ones
+     * have been read, whichever comes first.
+     *
+     * @return The number of ones.
+     */
+    public int readUnary(int limit) throws IOException {
+        int ones = 0;
+        while (ones < limit) {
+            if (mCount == 0) {
+                if (mPosition >= mEnd) throw new IOException("truncated bit stream");
+                mBits = mBuffer[mPosition++] & 0xFF;
+                mCount = 8;
+            }
+            mCount--;
+            if (((mBits >>> mCount) & 1) == 0) return ones;
+            ones++;
+        }
+        return ones;
+    }
+}
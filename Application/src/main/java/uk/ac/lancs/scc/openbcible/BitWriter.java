@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Writes a big-endian bit stream into a caller-supplied byte array. Reusable: {@code reset} it
+ * onto a new array or offset. No bounds checks beyond the array's own; callers size the array
+ * for the worst case.
+ */
+public class BitWriter {
+    private byte[] mBuffer;
+    private int mPosition;
+    //bits not yet written out, right-aligned; fewer than 8 between calls
+    private long mBits;
+    private int mCount;
+
+    public void reset(byte[] buffer, int offset) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mBits = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Writes the low {@code bits} bits of {@code value}, most significant first.
+     *
+     * @param bits 0 to 32.
+     */
+    public void write(int value, int bits) {
+        if (bits == 0) return;
+        mBits = (mBits << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+        mCount += bits;
+        while (mCount >= 8) {
+            mCount -= 8;
+            mBuffer[mPosition++] = (byte) (mBits >>> mCount);
+        }
+    }
+
+    /**
+     * Writes {@code ones} one bits followed by a zero.
+     */
+    public void writeUnary(int ones) {
+        while (ones >= 32) {
+            write(-1, 32);
+            ones -= 32;
+        }
+        //ones set bits then a clear one
+        write(((1 << ones) - 1) << 1, ones + 1);
+    }
+
+    /**
+     * Pads the last byte with zeros.
+     *
+     * @return The offset just past the last byte written.
+     */
+    public int finish() {
+        if (mCount > 0) {
+            mBuffer[mPosition++] = (byte) (mBits << (8 - mCount));
+            mCount = 0;
+        }
+        mBits = 0;
+        return mPosition;
+    }
+}
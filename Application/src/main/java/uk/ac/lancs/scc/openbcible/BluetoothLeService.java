@@ -30,11 +30,24 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -64,8 +77,160 @@ public class BluetoothLeService extends Service {
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
 
+    //segmented session (SegmentedRecorder), BDF+ or EDF+ (EdfWriter), OpenBCI GUI text (CsvWriter)
+    public static final int RECORDING_FORMAT_SESSION = 0;
+    public static final int RECORDING_FORMAT_BDF = 1;
+    public static final int RECORDING_FORMAT_EDF = 2;
+    public static final int RECORDING_FORMAT_CSV = 3;
+
+    //frames handed to the processing chain at a time, ~0.25s at full Cyton rate
+    private static final int DSP_BLOCK_FRAMES = 64;
+    //the display needs no more than ~60 samples a second; one stage of 4 costs fewer multiplies
+    //and adds less delay than two of 2 for the same anti-aliasing
+    private static final int[] DEFAULT_DISPLAY_DECIMATION = {4};
+    //frames kept for in-process consumers, ~20s of Ganglion data
+    private static final int SAMPLE_BUFFER_FRAMES = 4096;
+    //notifications that may wait for the processing thread, ~1s at full Cyton rate
+    private static final int PACKET_QUEUE_SIZE = 512;
+
+    //recordings are kept in the app's external files, where they can be copied off the phone
+    private static final String RECORDINGS_DIR = "sessions";
+    //session recordings are split into segments of at most this long or large
+    private static final long DEFAULT_SEGMENT_MILLIS = 10 * 60 * 1000;
+    private static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    //recordings are evicted, exported and oldest first, beyond this
+    private static final long DEFAULT_STORAGE_BUDGET = 2L * 1024 * 1024 * 1024;
+    //how often the budget is checked while recording
+    private static final long STORAGE_CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final int MSG_DRAIN = 1;
+    private static final int MSG_RESET = 2;
+
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.UUID_HEART_RATE_MEASUREMENT);
+    public final static UUID UUID_GANGLION_RECEIVE =
+            UUID.fromString(SampleGattAttributes.UUID_GANGLION_RECEIVE);
+    public final static UUID UUID_CYTON_RECEIVE =
+            UUID.fromString(SampleGattAttributes.UUID_CYTON_RECEIVE);
+
+    //decoding, loss tracking and sample publication all run on the processing thread; the GATT
+    //callback only copies each payload into the packet queue
+    private final IngestPipeline mIngestPipeline = new IngestPipeline(SAMPLE_BUFFER_FRAMES);
+    private final PacketQueue mPacketQueue =
+            new PacketQueue(PACKET_QUEUE_SIZE, IngestPipeline.MAX_PACKET_LENGTH);
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler;
+
+    //raw payloads are also copied here while capturing; the UUID index is the source
+    private static final UUID[] CAPTURE_UUIDS = {UUID_GANGLION_RECEIVE, UUID_CYTON_RECEIVE};
+    private volatile PacketCapture mCapture;
+
+    private final PacketQueue.Consumer mPacketConsumer = new PacketQueue.Consumer() {
+        @Override
+        public void onPacket(int source, byte[] data, int length, long timestampNanos) {
+            final PacketCapture capture = mCapture;
+            if (capture != null) capture.append(source, timestampNanos, data, length);
+            mIngestPipeline.onPacket(source, data, length);
+        }
+    };
+
+    private final Handler.Callback mProcessingCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DRAIN:
+                    //clear first so a packet queued while draining schedules another pass
+                    mDrainPending.set(false);
+                    mPacketQueue.drain(mPacketConsumer);
+                    return true;
+                case MSG_RESET:
+                    mPacketQueue.drain(mPacketConsumer);
+                    mIngestPipeline.reset();
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    //the recorder consumes the sample buffer on its own thread
+    private SampleStreamWriter mRecordingWriter;
+    private File mRecordingFile;
+    private SyncPolicy mRecordingSyncPolicy = SyncPolicy.interval(1000);
+    private SegmentedRecorder mSegmentedRecorder;
+    private long mSegmentMillis = DEFAULT_SEGMENT_MILLIS;
+    private long mSegmentBytes = DEFAULT_SEGMENT_BYTES;
+    //closed segments are recoded in the background
+    private SegmentCompactor mCompactor;
+
+    //the storage budget is enforced, and usage measured, on its own background thread
+    private SessionStore mSessionStore;
+    private HandlerThread mStoreThread;
+    private Handler mStoreHandler;
+    private volatile long mStorageUsedBytes;
+    private volatile long mStorageAvailableBytes;
+
+    private final Runnable mEnforceStorageBudget = new Runnable() {
+        @Override
+        public void run() {
+            final long reserve;
+            final boolean writing;
+            synchronized (BluetoothLeService.this) {
+                //room for the next segment
+                reserve = mRecordingWriter != null ? mSegmentBytes : 0;
+                writing = mRecordingWriter != null || mCapture != null;
+            }
+            final long freed = mSessionStore.enforceBudget(reserve);
+            if (freed > 0) {
+                Log.i(TAG, "Evicted " + freed + " bytes of recordings to stay within "
+                        + mSessionStore.getBudgetBytes());
+            }
+            mStorageUsedBytes = mSessionStore.getUsedBytes();
+            mStorageAvailableBytes = mSessionStore.getAvailableBytes();
+            final Handler handler = mStoreHandler;
+            if (writing && handler != null) {
+                handler.postDelayed(this, STORAGE_CHECK_INTERVAL_MILLIS);
+            }
+        }
+    };
+
+    //exports of recorded sessions still running, each on its own thread
+    private final List<CsvExporter> mExports = new ArrayList<CsvExporter>();
+
+    //filtering, spectra and band powers, fed from the sample buffer on their own thread while
+    //anything reads them
+    private int mDspConsumers;
+    private SampleStreamWriter mDspWriter;
+    private DspChain mDspChain;
+    private SampleRingBuffer mDspBuffer;
+    private float mMainsHz = DspChain.DEFAULT_MAINS_HZ;
+    private boolean mDspSingleThreaded;
+    private int[] mDisplayDecimation = DEFAULT_DISPLAY_DECIMATION;
+
+    //every read, write, descriptor write and MTU/priority request goes through this queue
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final GattOperationQueue mGattQueue = new GattOperationQueue(
+            new GattOperationQueue.Host() {
+                @Override
+                public long uptimeMillis() {
+                    return SystemClock.uptimeMillis();
+                }
+
+                @Override
+                public void postDelayed(Runnable r, long delayMillis) {
+                    mHandler.postDelayed(r, delayMillis);
+                }
+
+                @Override
+                public void removeCallbacks(Runnable r) {
+                    mHandler.removeCallbacks(r);
+                }
+            });
+
+    //link parameters requested after service discovery, and what was actually obtained
+    private volatile ConnectionProfile mConnectionProfile;
+    private volatile int mNegotiatedMtu = ConnectionProfile.DEFAULT_MTU;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
 
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
@@ -85,6 +250,9 @@ public class BluetoothLeService extends Service {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
+                mGattQueue.clear();
+                mNegotiatedMtu = ConnectionProfile.DEFAULT_MTU;
+                mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -94,6 +262,7 @@ public class BluetoothLeService extends Service {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.v(TAG,"GattServer Services Discovered");
+                applyConnectionProfile();
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
@@ -107,15 +276,57 @@ public class BluetoothLeService extends Service {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
             }
+            mGattQueue.complete(GattOperationQueue.TYPE_READ, characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            Log.w(TAG, "Written to: " +characteristic.getUuid() + " Status: "+ (BluetoothGatt.GATT_SUCCESS==status));
+            mGattQueue.complete(GattOperationQueue.TYPE_WRITE, characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mGattQueue.complete(GattOperationQueue.TYPE_DESCRIPTOR_WRITE,
+                    descriptor.getCharacteristic().getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i(TAG, "MTU changed to " + mtu + " Status: " + status);
+            if (status == BluetoothGatt.GATT_SUCCESS) mNegotiatedMtu = mtu;
+            mGattQueue.complete(GattOperationQueue.TYPE_REQUEST_MTU, null, status);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            // Sample streams go to the processing thread; only low-rate characteristics are
+            // broadcast.
+            final UUID uuid = characteristic.getUuid();
+            if (UUID_GANGLION_RECEIVE.equals(uuid)) {
+                queuePacket(IngestPipeline.SOURCE_GANGLION, characteristic.getValue());
+            } else if (UUID_CYTON_RECEIVE.equals(uuid)) {
+                queuePacket(IngestPipeline.SOURCE_CYTON, characteristic.getValue());
+            } else {
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            }
         }
     };
 
+    // Runs on the binder thread: copy the payload and wake the processing thread if it is idle.
+    private void queuePacket(int source, byte[] data) {
+        final Handler handler = mProcessingHandler;
+        if (data == null || handler == null) return;
+        mPacketQueue.offer(source, data, data.length, SystemClock.elapsedRealtimeNanos());
+        if (mDrainPending.compareAndSet(false, true)) {
+            handler.sendEmptyMessage(MSG_DRAIN);
+        }
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
@@ -145,10 +356,7 @@ public class BluetoothLeService extends Service {
             // For all other profiles, writes the data formatted in HEX.
             final byte[] data = characteristic.getValue();
             if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + HexFormatter.toHexString(data));
             }
         }
         sendBroadcast(intent);
@@ -160,6 +368,52 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mProcessingThread = new HandlerThread("OpenBCIBLE-ingest",
+                Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper(), mProcessingCallback);
+        mCompactor = new SegmentCompactor(new SegmentCompactor.Listener() {
+            @Override
+            public void onSegmentCompacted(SessionManifest manifest, int segment,
+                                           IOException error) {
+                if (error != null) {
+                    Log.w(TAG, "Unable to compact " + manifest.getSegmentFile(segment), error);
+                }
+                //the store held off evicting the session while it had segments queued
+                if (!mCompactor.isBusy(manifest.getFile())) checkStorageBudget();
+            }
+        });
+        final File dir = getRecordingsDir();
+        if (dir != null) {
+            mSessionStore = new SessionStore(dir, DEFAULT_STORAGE_BUDGET);
+            mSessionStore.setCompactor(mCompactor);
+            mStoreThread = new HandlerThread("OpenBCIBLE-store",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mStoreThread.start();
+            mStoreHandler = new Handler(mStoreThread.getLooper());
+        }
+        recoverInterruptedRecordings();
+    }
+
+    @Override
+    public void onDestroy() {
+        stopRecording();
+        stopCapture();
+        stopDsp();
+        cancelExports();
+        mCompactor.shutdown();
+        if (mStoreThread != null) {
+            mStoreHandler = null;
+            mStoreThread.quitSafely();
+        }
+        mProcessingHandler = null;
+        mProcessingThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -238,6 +492,7 @@ public class BluetoothLeService extends Service {
         Log.v(TAG,"Connecting to GATT Server on the Device");
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
+        if (mProcessingHandler != null) mProcessingHandler.sendEmptyMessage(MSG_RESET);
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
@@ -267,6 +522,7 @@ public class BluetoothLeService extends Service {
         if (mBluetoothGatt == null) {
             return;
         }
+        mGattQueue.clear();
         mBluetoothGatt.close();
         mBluetoothGatt = null;
     }
@@ -274,29 +530,31 @@ public class BluetoothLeService extends Service {
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * callback. The read is queued behind any GATT operation already in flight.
      *
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
-    }
-
-    public void onCharacteristicWrite (BluetoothGatt gatt,
-                                       BluetoothGattCharacteristic characteristic,
-                                       int status){
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        Log.w(TAG, "Written to: " +characteristic.getUuid() + " Status: "+ (mBluetoothGatt.GATT_SUCCESS==status));
+        mGattQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, characteristic.getUuid()) {
+            @Override
+            protected boolean start() {
+                return mBluetoothGatt != null && mBluetoothGatt.readCharacteristic(characteristic);
+            }
+        });
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic){
+    /**
+     * Queues a write of the characteristic's current value. The value is captured now, so the
+     * caller may set a new value and queue another write straight away.
+     *
+     * @param characteristic The characteristic to write to, with its value already set.
+     */
+    public void writeCharacteristic(final BluetoothGattCharacteristic characteristic){
         //pre-prepared characteristic to write to
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
@@ -304,7 +562,23 @@ public class BluetoothLeService extends Service {
         }
         Log.w(TAG, "Writing to " +characteristic.getUuid());
 
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        final byte[] value = characteristic.getValue();
+        mGattQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_WRITE, characteristic.getUuid()) {
+            @Override
+            protected boolean start() {
+                if (mBluetoothGatt == null) return false;
+                characteristic.setValue(value);
+                return mBluetoothGatt.writeCharacteristic(characteristic);
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    Log.w(TAG, "Write to " + characteristic.getUuid() + " failed: " + status);
+                }
+            }
+        });
     }
 
     /**
@@ -322,13 +596,629 @@ public class BluetoothLeService extends Service {
         }
         mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
-        // This is specific to Heart Rate Measurement.
-        if (SampleGattAttributes.UUID_GANGLION_RECEIVE.equals(characteristic.getUuid().toString())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+        if (enabled && UUID_GANGLION_RECEIVE.equals(characteristic.getUuid())) {
+            mIngestPipeline.startStream(IngestPipeline.SOURCE_GANGLION);
+            startDsp();
+        } else if (enabled && UUID_CYTON_RECEIVE.equals(characteristic.getUuid())) {
+            mIngestPipeline.startStream(IngestPipeline.SOURCE_CYTON);
+            startDsp();
+        }
+
+        //the board only sends notifications once they are enabled in its CCC descriptor
+        if (UUID_GANGLION_RECEIVE.equals(characteristic.getUuid())
+                || UUID_CYTON_RECEIVE.equals(characteristic.getUuid())) {
+            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            if (descriptor == null) {
+                Log.w(TAG, "No client configuration descriptor on " + characteristic.getUuid());
+                return;
+            }
+            final byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+            mGattQueue.enqueue(new GattOperationQueue.Operation(
+                    GattOperationQueue.TYPE_DESCRIPTOR_WRITE, characteristic.getUuid()) {
+                @Override
+                protected boolean start() {
+                    if (mBluetoothGatt == null) return false;
+                    descriptor.setValue(value);
+                    return mBluetoothGatt.writeDescriptor(descriptor);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues an ATT MTU request. The result is reported through
+     * {@code BluetoothGattCallback#onMtuChanged(android.bluetooth.BluetoothGatt, int, int)}.
+     *
+     * @param mtu The MTU to ask the peripheral for.
+     */
+    public void requestMtu(final int mtu) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        //boards that do not support a larger MTU reject or ignore the request; one try is enough
+        mGattQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_REQUEST_MTU, null) {
+            @Override
+            protected boolean start() {
+                return mBluetoothGatt != null && mBluetoothGatt.requestMtu(mtu);
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    Log.w(TAG, "MTU request refused (" + status + "), staying at " + mNegotiatedMtu);
+                }
+            }
+        }.setMaxAttempts(1));
+    }
+
+    /**
+     * Queues a connection priority request, one of the {@code BluetoothGatt.CONNECTION_PRIORITY_}
+     * constants. There is no callback for this; it is ordered with the other operations so it is
+     * not dropped while one of them is in flight.
+     */
+    public void requestConnectionPriority(final int priority) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        mGattQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_CONNECTION_PRIORITY, null) {
+            @Override
+            protected boolean start() {
+                return mBluetoothGatt != null
+                        && mBluetoothGatt.requestConnectionPriority(priority);
+            }
+
+            @Override
+            protected void onComplete(int status) {
+                if (status == GattOperationQueue.STATUS_SUCCESS) {
+                    mConnectionPriority = priority;
+                } else {
+                    Log.w(TAG, "Connection priority " + priority + " refused (" + status + ")");
+                }
+            }
+        }.setMaxAttempts(1));
+    }
+
+    /**
+     * Sets the link parameters to request on the next service discovery. Takes effect on the
+     * next connection, or immediately if services have already been discovered.
+     */
+    public void setConnectionProfile(ConnectionProfile profile) {
+        mConnectionProfile = profile;
+        if (mConnectionState == STATE_CONNECTED && mBluetoothGatt != null) {
+            applyConnectionProfile();
+        }
+    }
+
+    /**
+     * @return The ATT MTU negotiated on the current connection.
+     */
+    public int getNegotiatedMtu() {
+        return mNegotiatedMtu;
+    }
+
+    /**
+     * @return The connection priority in effect, one of the
+     *         {@code BluetoothGatt.CONNECTION_PRIORITY_} constants.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    private void applyConnectionProfile() {
+        final ConnectionProfile profile = mConnectionProfile;
+        if (profile == null) return;
+        if (profile.isHighThroughput()) {
+            Log.i(TAG, "High throughput mode for " + profile.getName());
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            if (profile.getRequestedMtu() > mNegotiatedMtu) {
+                requestMtu(profile.getRequestedMtu());
+            }
+        } else if (mConnectionPriority != BluetoothGatt.CONNECTION_PRIORITY_BALANCED) {
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    }
+
+    /**
+     * @return The queue all GATT operations go through, for its depth and latency metrics.
+     */
+    public GattOperationQueue getGattOperationQueue() {
+        return mGattQueue;
+    }
+
+    /**
+     * Returns the buffer that decoded samples of the currently streaming board are published to.
+     * Consumers should take a {@code SampleRingBuffer.Cursor} from it and poll at their own rate.
+     * The buffer is replaced when a board with a different channel count starts streaming, so
+     * consumers should compare against the instance they hold.
+     *
+     * @return The sample buffer, or null if no sample stream has been enabled yet.
+     */
+    public SampleRingBuffer getSampleBuffer() {
+        return mIngestPipeline.getSampleBuffer();
+    }
+
+    /**
+     * @return The newest raw packet received on the Ganglion or Cyton RECEIVE characteristic.
+     */
+    public PacketSnapshot getLatestPacket() {
+        return mIngestPipeline.getLatestPacket();
+    }
+
+    /**
+     * @return Packet loss statistics of the currently streaming board, or null if no sample
+     *         stream has been enabled yet.
+     */
+    public PacketSequenceTracker getPacketSequenceTracker() {
+        return mIngestPipeline.getPacketSequenceTracker();
+    }
+
+    /**
+     * @return Number of notifications dropped because the processing thread fell behind.
+     */
+    public long getDroppedPackets() {
+        return mPacketQueue.getDroppedPackets();
+    }
+
+    /**
+     * Enables or disables filling gaps left by lost packets with interpolated frames, flagged
+     * with {@code SampleRingBuffer.FLAG_INTERPOLATED}. Off by default.
+     */
+    public void setGapFillEnabled(boolean enabled) {
+        mIngestPipeline.setGapFillEnabled(enabled);
+    }
+
+    /**
+     * Registers a reader of the processing chain's results, e.g. the display. The chain runs
+     * while there is at least one, following the stream as it changes; each call must be
+     * matched by a {@code releaseDsp}.
+     *
+     * @return The chain, or null if no sample stream has been enabled yet.
+     */
+    public synchronized DspChain acquireDsp() {
+        mDspConsumers++;
+        return startDsp();
+    }
+
+    /**
+     * Unregisters a reader added by {@code acquireDsp}, stopping the chain after the last.
+     */
+    public synchronized void releaseDsp() {
+        if (mDspConsumers == 0) return;
+        if (--mDspConsumers == 0) stopDsp();
+    }
+
+    // Starts filtering and analysing the current sample stream if anything reads the results,
+    // replacing the chain if the stream changed. Also called when notifications are enabled.
+    private synchronized DspChain startDsp() {
+        final SampleRingBuffer buffer = mIngestPipeline.getSampleBuffer();
+        final int source = mIngestPipeline.getActiveSource();
+        if (mDspConsumers == 0 || buffer == null || source < 0) return null;
+        if (mDspWriter != null && mDspBuffer == buffer) return mDspChain;
+        stopDsp();
+        final SessionHeader header = SessionHeader.forSource(source, null, null,
+                SessionRecorder.DEFAULT_CHUNK_FRAMES, System.currentTimeMillis());
+        mDspChain = new DspChain(header, DSP_BLOCK_FRAMES, 0, mMainsHz, mDisplayDecimation);
+        mDspChain.setSingleThreaded(mDspSingleThreaded);
+        mDspBuffer = buffer;
+        mDspWriter = new SampleStreamWriter("OpenBCIBLE-dsp", buffer, mDspChain,
+                DSP_BLOCK_FRAMES);
+        mDspWriter.start();
+        return mDspChain;
+    }
+
+    private synchronized void stopDsp() {
+        if (mDspWriter == null) return;
+        mDspWriter.stop();
+        mDspWriter = null;
+        mDspChain = null;
+        mDspBuffer = null;
+    }
+
+    /**
+     * @return The running processing chain, for reading spectra and band powers, or null if it
+     *         is not running; see {@code acquireDsp}.
+     */
+    public synchronized DspChain getDspChain() {
+        return mDspChain;
+    }
+
+    /**
+     * Sets the mains frequency notched out, 50 or 60 Hz, or 0 for none. Applies from the next
+     * stream.
+     */
+    public synchronized void setMainsFrequency(float mainsHz) {
+        mMainsHz = mainsHz;
+    }
+
+    /**
+     * Returns the buffer the filtered stream is published to at a reduced rate, e.g. for the
+     * display. Like {@code getSampleBuffer()}, it is replaced when the stream changes.
+     *
+     * @return The buffer, or null if processing is not running or decimation is off.
+     */
+    public synchronized SampleRingBuffer getDecimatedSampleBuffer() {
+        return mDspChain == null ? null : mDspChain.getDecimatedBuffer();
+    }
+
+    /**
+     * Sets the factors by which the decimated stream is reduced, applied one after the other,
+     * or none to turn it off. Applies from the next stream.
+     */
+    public synchronized void setDisplayDecimation(int... factors) {
+        mDisplayDecimation = factors.clone();
+    }
+
+    /**
+     * Runs all processing on one thread instead of spreading channels over the cores, e.g. to
+     * get a fixed order of work when testing.
+     */
+    public synchronized void setDspSingleThreaded(boolean singleThreaded) {
+        mDspSingleThreaded = singleThreaded;
+        if (mDspChain != null) mDspChain.setSingleThreaded(singleThreaded);
+    }
+
+    /**
+     * Starts recording the current sample stream to a new file.
+     *
+     * @param format One of the {@code RECORDING_FORMAT_} constants.
+     *
+     * @return The file being written, or null if no sample stream has been enabled yet or the
+     *         file could not be created.
+     */
+    public synchronized File startRecording(int format) {
+        if (mRecordingWriter != null) return mRecordingFile;
+        final SampleRingBuffer buffer = mIngestPipeline.getSampleBuffer();
+        final int source = mIngestPipeline.getActiveSource();
+        if (buffer == null || source < 0) {
+            Log.w(TAG, "No sample stream to record");
+            return null;
+        }
+        final File dir = getRecordingsDir();
+        if (dir == null) return null;
+        final long now = System.currentTimeMillis();
+        final String name = "session-" + timestamp(now);
+        //before the file exists, so a budget check cannot evict it
+        if (mSessionStore != null) mSessionStore.addActiveSession(name);
+        final ConnectionProfile profile = mConnectionProfile;
+        final SessionHeader header = SessionHeader.forSource(source, mBluetoothDeviceAddress,
+                profile == null ? null : profile.getName(),
+                SessionRecorder.DEFAULT_CHUNK_FRAMES, now);
+        final File file;
+        final SampleSink sink;
+        try {
+            switch (format) {
+                case RECORDING_FORMAT_BDF:
+                    file = new File(dir, name + EdfWriter.FILE_EXTENSION_BDF);
+                    sink = new EdfWriter(file, header, true);
+                    break;
+                case RECORDING_FORMAT_EDF:
+                    file = new File(dir, name + EdfWriter.FILE_EXTENSION_EDF);
+                    sink = new EdfWriter(file, header, false);
+                    break;
+                case RECORDING_FORMAT_CSV:
+                    file = new File(dir, name + CsvWriter.FILE_EXTENSION);
+                    sink = new CsvWriter(file, header);
+                    break;
+                default:
+                    file = new File(dir, name + SessionManifest.FILE_EXTENSION);
+                    mSegmentedRecorder = new SegmentedRecorder(file, header, mSegmentMillis,
+                            mSegmentBytes, mRecordingSyncPolicy, mCompactor);
+                    sink = mSegmentedRecorder;
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create recording in " + dir, e);
+            if (mSessionStore != null) mSessionStore.removeActiveSession(name);
+            return null;
+        }
+        mRecordingFile = file;
+        mRecordingWriter = new SampleStreamWriter("OpenBCIBLE-recorder", buffer, sink,
+                SessionRecorder.DEFAULT_CHUNK_FRAMES);
+        mRecordingWriter.start();
+        Log.i(TAG, "Recording to " + file);
+        checkStorageBudget();
+        return file;
+    }
+
+    /**
+     * Stops recording, writing out whatever is still buffered. Blocks until the file is closed.
+     */
+    public synchronized void stopRecording() {
+        if (mRecordingWriter == null) return;
+        mRecordingWriter.stop();
+        if (mRecordingWriter.getError() != null) {
+            Log.e(TAG, "Recording failed", mRecordingWriter.getError());
+        }
+        Log.i(TAG, "Recorded " + mRecordingWriter.getFramesWritten() + " frames, "
+                + mRecordingWriter.getDroppedFrames() + " dropped, to " + mRecordingFile);
+        final String name = SessionStore.sessionName(mRecordingFile);
+        mRecordingWriter = null;
+        mRecordingFile = null;
+        mSegmentedRecorder = null;
+        if (mSessionStore != null) {
+            mSessionStore.removeActiveSession(name);
+            checkStorageBudget();
+        }
+    }
+
+    public synchronized boolean isRecording() {
+        return mRecordingWriter != null && mRecordingWriter.isRunning();
+    }
+
+    /**
+     * Sets how often session recordings are synced to storage. Applies to recordings started
+     * afterwards.
+     */
+    public synchronized void setRecordingSyncPolicy(SyncPolicy policy) {
+        mRecordingSyncPolicy = policy;
+    }
+
+    /**
+     * Sets when session recordings start a new segment. Applies to recordings started afterwards.
+     *
+     * @param maxMillis Segment duration limit, or 0 for none.
+     * @param maxBytes Segment size limit, or 0 for none.
+     */
+    public synchronized void setRecordingSegmentLimits(long maxMillis, long maxBytes) {
+        mSegmentMillis = maxMillis;
+        mSegmentBytes = maxBytes;
+    }
+
+    /**
+     * Asks the recorder to make everything recorded so far durable, e.g. when the UI goes into
+     * the background. Does not wait.
+     */
+    public synchronized void syncRecording() {
+        if (mRecordingWriter != null) mRecordingWriter.requestSync();
+    }
+
+    /**
+     * Converts a recorded session file to the OpenBCI GUI text format in the background, next to
+     * the session. Does not wait.
+     *
+     * @return The file being written.
+     */
+    public File exportToCsv(File session) {
+        final File destination = CsvExporter.destinationFor(session);
+        final CsvExporter exporter = new CsvExporter(session, destination,
+                new CsvExporter.Listener() {
+                    @Override
+                    public void onExportFinished(CsvExporter exporter, IOException error) {
+                        synchronized (mExports) {
+                            mExports.remove(exporter);
+                        }
+                        if (error != null) {
+                            Log.e(TAG, "Export of " + exporter.getSource() + " failed", error);
+                            return;
+                        }
+                        Log.i(TAG, "Exported " + exporter.getFramesWritten() + " frames to "
+                                + exporter.getDestination());
+                        if (mSessionStore != null && !exporter.isCancelled()) {
+                            try {
+                                mSessionStore.markExported(
+                                        SessionStore.sessionName(exporter.getSource()));
+                            } catch (IOException e) {
+                                Log.w(TAG, "Unable to mark " + exporter.getSource()
+                                        + " exported", e);
+                            }
+                        }
+                    }
+                });
+        synchronized (mExports) {
+            mExports.add(exporter);
+        }
+        exporter.start();
+        return destination;
+    }
+
+    /**
+     * Sets how many bytes recordings may use before the oldest are deleted (exported sessions
+     * first), or 0 for no limit. Enforced in the background.
+     */
+    public void setStorageBudget(long budgetBytes) {
+        if (mSessionStore == null) return;
+        mSessionStore.setBudgetBytes(budgetBytes);
+        checkStorageBudget();
+    }
+
+    /**
+     * @return Bytes used by recordings, as of the last check.
+     */
+    public long getStorageUsedBytes() {
+        return mStorageUsedBytes;
+    }
+
+    public long getStorageBudgetBytes() {
+        return mSessionStore == null ? 0 : mSessionStore.getBudgetBytes();
+    }
+
+    /**
+     * @return How long the current sample stream could still be recorded within the budget and
+     *         the free storage, as of the last check, or -1 if there is no stream.
+     */
+    public long getRemainingRecordingMillis() {
+        final int source = mIngestPipeline.getActiveSource();
+        if (source < 0) return -1;
+        final boolean ganglion = source == IngestPipeline.SOURCE_GANGLION;
+        final double bytesPerSecond = SessionStore.bytesPerSecond(
+                ganglion ? GanglionDecoder.SAMPLE_RATE_HZ : CytonPacketParser.SAMPLE_RATE_HZ,
+                ganglion ? GanglionDecoder.NUM_CHANNELS : CytonPacketParser.NUM_CHANNELS);
+        return (long) (mStorageAvailableBytes * 1000 / bytesPerSecond);
+    }
+
+    // Rescans the recordings and evicts sessions if over budget, on the store thread; repeats
+    // while recording or capturing.
+    private void checkStorageBudget() {
+        final Handler handler = mStoreHandler;
+        if (handler == null) return;
+        handler.removeCallbacks(mEnforceStorageBudget);
+        handler.post(mEnforceStorageBudget);
+    }
+
+    private void cancelExports() {
+        synchronized (mExports) {
+            for (CsvExporter exporter : mExports) exporter.cancel();
+        }
+    }
+
+    // Repairs session files left open by a previous run that was killed, in the background, then
+    // closes their manifests and queues segments that were never compacted.
+    private void recoverInterruptedRecordings() {
+        final File dir = getRecordingsDir();
+        if (dir == null) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = dir.listFiles();
+                if (files == null) return;
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(SegmentCompactor.TEMP_SUFFIX)
+                            || name.endsWith(SegmentCompactor.TEMP_SUFFIX
+                                    + SessionIndex.FILE_SUFFIX)) {
+                        //left by a compaction that was cut short
+                        file.delete();
+                        continue;
+                    }
+                    if (!name.endsWith(SessionRecorder.FILE_EXTENSION)) continue;
+                    //leave the file being recorded alone
+                    if (isRecordingTo(file)) continue;
+                    try {
+                        final SessionRecovery.Result result =
+                                SessionRecovery.recoverIfNeeded(file);
+                        if (result.recovered) {
+                            Log.i(TAG, "Recovered " + result.frames + " frames in " + file
+                                    + ", truncated " + result.truncatedBytes + " bytes");
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to recover " + file, e);
+                    }
+                }
+                for (File file : files) {
+                    if (!file.getName().endsWith(SessionManifest.FILE_EXTENSION)) continue;
+                    if (isRecordingTo(file)) continue;
+                    try {
+                        resumeManifest(SessionManifest.load(file));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to read " + file, e);
+                    }
+                }
+                checkStorageBudget();
+            }
+        }, "OpenBCIBLE-recovery").start();
+    }
+
+    private synchronized boolean isRecordingTo(File file) {
+        return file.equals(mRecordingFile) || (mSegmentedRecorder != null
+                && file.equals(mSegmentedRecorder.getCurrentSegmentFile()));
+    }
+
+    // Fills in the segment that was being recorded when a session was cut short, marks the
+    // session complete and queues its raw segments for compaction.
+    private void resumeManifest(SessionManifest manifest) throws IOException {
+        for (int i = 0; i < manifest.getSegmentCount(); i++) {
+            final File segment = manifest.getSegmentFile(i);
+            final int state = manifest.getSegmentState(i);
+            if (state == SessionManifest.STATE_RECORDING && segment.isFile()) {
+                final SessionReader reader = new SessionReader(segment);
+                try {
+                    manifest.updateSegment(i, reader.getFrameCount(), segment.length(),
+                            SessionManifest.STATE_CLOSED);
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        if (!manifest.isComplete()) {
+            manifest.setComplete(true);
+            manifest.save();
+            Log.i(TAG, "Closed interrupted session " + manifest.getFile());
+        }
+        for (int i = 0; i < manifest.getSegmentCount(); i++) {
+            if (manifest.getSegmentState(i) == SessionManifest.STATE_CLOSED) {
+                mCompactor.submit(manifest, i);
+            }
+        }
+    }
+
+    /**
+     * Starts capturing the raw Ganglion/Cyton notification payloads, with their arrival times,
+     * to a new {@code RawPacketLog}. Captures can be decoded later with {@code CaptureReader} or
+     * replayed with {@code ReplayTransport}.
+     *
+     * @return The file being written, or null if it could not be created.
+     */
+    public synchronized File startCapture() {
+        if (mCapture != null) return mCapture.getFile();
+        final File dir = getRecordingsDir();
+        if (dir == null) return null;
+        final long now = System.currentTimeMillis();
+        final String name = "capture-" + timestamp(now);
+        final File file = new File(dir, name + RawPacketLog.FILE_EXTENSION);
+        //protected until the file is closed, see stopCapture
+        if (mSessionStore != null) mSessionStore.addActiveSession(name);
+        try {
+            //packet queue timestamps are on the elapsedRealtimeNanos clock
+            mCapture = new PacketCapture(file, CAPTURE_UUIDS, now,
+                    SystemClock.elapsedRealtimeNanos());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create " + file, e);
+            if (mSessionStore != null) mSessionStore.removeActiveSession(name);
+            return null;
+        }
+        Log.i(TAG, "Capturing to " + file);
+        checkStorageBudget();
+        return file;
+    }
+
+    /**
+     * Stops capturing. The capture is finished on the processing thread, after any payload
+     * still queued, and the file is closed in the background.
+     */
+    public synchronized void stopCapture() {
+        final PacketCapture capture = mCapture;
+        if (capture == null) return;
+        mCapture = null;
+        final Handler handler = mProcessingHandler;
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                capture.finish();
+                Log.i(TAG, "Captured " + capture.getPacketCount() + " packets, "
+                        + capture.getDroppedPackets() + " dropped, to " + capture.getFile());
+                final SessionStore store = mSessionStore;
+                if (store != null) {
+                    store.removeActiveSession(SessionStore.sessionName(capture.getFile()));
+                    checkStorageBudget();
+                }
+            }
+        };
+        if (handler == null || !handler.post(finish)) finish.run();
+    }
+
+    public boolean isCapturing() {
+        return mCapture != null;
+    }
+
+    // Where recordings and captures go, created if needed; null if it cannot be.
+    private File getRecordingsDir() {
+        File dir = getExternalFilesDir(RECORDINGS_DIR);
+        if (dir == null) dir = new File(getFilesDir(), RECORDINGS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + dir);
+            return null;
         }
+        return dir;
+    }
+
+    private static String timestamp(long timeMillis) {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(timeMillis));
     }
 
     /**
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes a raw capture ({@code RawPacketLog}) on demand: payloads are pushed through a private
+ * {@code IngestPipeline}, the same decode path as live data, only as far as needed to return the
+ * frames asked for. Old captures therefore benefit from decoder fixes, and a long capture can be
+ * exported without decoding it all up front.
+ *
+ * Only the first sample stream found in the capture is decoded.
+ */
+public class CaptureReader implements Closeable {
+    //largest batch read() returns; the pipeline's buffer holds twice as much
+    public static final int MAX_BATCH_FRAMES = 2048;
+
+    private final RawPacketLog.Reader mReader;
+    private final IngestPipeline mPipeline = new IngestPipeline(MAX_BATCH_FRAMES * 2);
+    private final int mSource;
+    private SampleRingBuffer.Cursor mCursor;
+    private boolean mEndOfLog;
+
+    public CaptureReader(File file) throws IOException {
+        mReader = new RawPacketLog.Reader(file);
+        int source = -1;
+        while (source < 0 && mReader.next()) source = mReader.getSource();
+        mSource = source;
+        rewind();
+    }
+
+    /**
+     * @return The {@code IngestPipeline.SOURCE_} decoded, or -1 if the capture holds no samples.
+     */
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * Describes the decoded stream, e.g. for a {@code SessionRecorder} or {@code EdfWriter}.
+     *
+     * @return The header, or null if the capture holds no samples.
+     */
+    public SessionHeader getHeader(String deviceAddress, String profileName, int chunkFrames) {
+        if (mSource < 0) return null;
+        return SessionHeader.forSource(mSource, deviceAddress, profileName, chunkFrames,
+                mReader.getStartTimeMillis());
+    }
+
+    /**
+     * Fill gaps left by lost packets with interpolated frames, as the live pipeline can.
+     */
+    public void setGapFillEnabled(boolean enabled) {
+        mPipeline.setGapFillEnabled(enabled);
+    }
+
+    /**
+     * Starts decoding again from the first payload.
+     */
+    public void rewind() {
+        mReader.rewind();
+        mPipeline.reset();
+        mEndOfLog = mSource < 0;
+        if (mSource >= 0) {
+            mPipeline.startStream(mSource);
+            mCursor = mPipeline.getSampleBuffer().newCursor();
+        }
+    }
+
+    /**
+     * Decodes up to {@code maxFrames} frames (at most {@code MAX_BATCH_FRAMES}).
+     *
+     * @param flags Receives each frame's {@code SampleRingBuffer} flags; may be null.
+     *
+     * @return The number of frames, 0 at the end of the capture.
+     */
+    public int read(int[] frames, int[] flags, int maxFrames) {
+        if (mCursor == null) return 0;
+        maxFrames = Math.min(maxFrames, MAX_BATCH_FRAMES);
+        while (!mEndOfLog && mCursor.available() < maxFrames) {
+            if (!mReader.next()) {
+                mEndOfLog = true;
+            } else if (mReader.getSource() == mSource) {
+                mPipeline.onPacket(mSource, mReader.getData(), mReader.getLength());
+            }
+        }
+        return mCursor.read(frames, flags, maxFrames);
+    }
+
+    /**
+     * Decodes the rest of the capture into {@code sink}, then closes the sink.
+     *
+     * @return The number of frames written.
+     */
+    public long copyTo(SampleSink sink) throws IOException {
+        final int channels = mPipeline.getSampleBuffer() == null
+                ? 1 : mPipeline.getSampleBuffer().getChannelCount();
+        final int[] frames = new int[MAX_BATCH_FRAMES * channels];
+        final int[] flags = new int[MAX_BATCH_FRAMES];
+        long total = 0;
+        try {
+            int n;
+            while ((n = read(frames, flags, MAX_BATCH_FRAMES)) > 0) {
+                sink.writeFrames(frames, flags, n);
+                total += n;
+            }
+        } finally {
+            sink.close();
+        }
+        return total;
+    }
+
+    /**
+     * @return Packet loss seen while decoding so far.
+     */
+    public PacketSequenceTracker getPacketSequenceTracker() {
+        return mPipeline.getPacketSequenceTracker();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Link parameters to ask for once connected to a given kind of board. In high-throughput mode
+ * the service requests the high connection priority (short connection interval) and, where the
+ * board's BLE chip supports it, a larger ATT MTU. Boards that refuse keep the defaults.
+ */
+public class ConnectionProfile {
+    //ATT MTU every BLE link starts with
+    public static final int DEFAULT_MTU = 23;
+
+    public static final String NAME_GANGLION = "Ganglion";
+    public static final String NAME_CYTON = "Cyton";
+    public static final String NAME_GENERIC = "Generic";
+
+    private final String mName;
+    private final int mRequestedMtu;
+    private boolean mHighThroughput;
+
+    /**
+     * @param name Name used to store the user's choice for this profile.
+     * @param requestedMtu MTU to request in high-throughput mode, or {@code DEFAULT_MTU} to leave
+     *                     the MTU alone.
+     */
+    public ConnectionProfile(String name, int requestedMtu) {
+        mName = name;
+        mRequestedMtu = Math.max(requestedMtu, DEFAULT_MTU);
+    }
+
+    /**
+     * Picks the profile for a device from its advertised name.
+     */
+    public static ConnectionProfile forDeviceName(String deviceName) {
+        final String name = deviceName == null ? "" : deviceName.toUpperCase();
+        if (name.contains(SampleGattAttributes.DEVICE_NAME_GANGLION)) {
+            //Simblee negotiates larger MTUs
+            return new ConnectionProfile(NAME_GANGLION, 247);
+        }
+        if (name.contains(SampleGattAttributes.DEVICE_NAME_CYTON)) {
+            //the RFDuino stack only supports the default MTU
+            return new ConnectionProfile(NAME_CYTON, DEFAULT_MTU);
+        }
+        return new ConnectionProfile(NAME_GENERIC, DEFAULT_MTU);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isHighThroughput() {
+        return mHighThroughput;
+    }
+
+    public void setHighThroughput(boolean highThroughput) {
+        mHighThroughput = highThroughput;
+    }
+
+    public int getRequestedMtu() {
+        return mRequestedMtu;
+    }
+}
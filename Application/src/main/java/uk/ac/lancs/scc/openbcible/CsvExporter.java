@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a recorded session file, or a segmented recording through its
+ * {@code SessionManifest}, to the OpenBCI GUI text format ({@code CsvWriter}) on a background
+ * thread. Frames are read a block at a time with {@code SessionReader}, so memory use does not
+ * depend on the session length. Live streams are exported by giving a
+ * {@code CsvWriter} to a {@code SampleStreamWriter} instead. Has no Android dependencies.
+ */
+public class CsvExporter implements Runnable {
+    /**
+     * Told when an export ends, on the exporter thread.
+     */
+    public interface Listener {
+        /**
+         * @param error The error that stopped the export, or null if it completed or was
+         *              cancelled.
+         */
+        void onExportFinished(CsvExporter exporter, IOException error);
+    }
+
+    //keeps exports apart from their source in the SessionStore, see destinationFor
+    public static final String NAME_SUFFIX = "-export";
+
+    private static final int BLOCK_FRAMES = 4096;
+
+    private final File mSource;
+    private final File mDestination;
+    private final Listener mListener;
+    private final Thread mThread;
+
+    private volatile boolean mCancelled;
+    private volatile long mFramesWritten;
+    private volatile long mFrameCount;
+    private volatile IOException mError;
+
+    /**
+     * @param source A session file written by {@code SessionRecorder}, or a manifest written by
+     *               {@code SegmentedRecorder}.
+     * @param destination The text file to create (or overwrite).
+     * @param listener May be null.
+     */
+    public CsvExporter(File source, File destination, Listener listener) {
+        mSource = source;
+        mDestination = destination;
+        mListener = listener;
+        mThread = new Thread(this, "OpenBCIBLE-export");
+        //exports are never urgent
+        mThread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Returns the export file for a session file: its name with {@code NAME_SUFFIX} and the text
+     * extension. The suffix makes the export a session of its own to {@code SessionStore}, so
+     * evicting the source once it has been exported leaves the export alone.
+     */
+    public static File destinationFor(File source) {
+        final String name = source.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(source.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + NAME_SUFFIX
+                        + CsvWriter.FILE_EXTENSION);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the export early, leaving a partial file. Does not wait.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Waits for the export to end.
+     */
+    public void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    public File getSource() {
+        return mSource;
+    }
+
+    public File getDestination() {
+        return mDestination;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * @return Frames in the session, or 0 until it has been opened.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The error that stopped the export, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            export();
+        } catch (IOException e) {
+            mError = e;
+        }
+        if (mListener != null) mListener.onExportFinished(this, mError);
+    }
+
+    private void export() throws IOException {
+        final File[] segments;
+        if (mSource.getName().endsWith(SessionManifest.FILE_EXTENSION)) {
+            final SessionManifest manifest = SessionManifest.load(mSource);
+            segments = new File[manifest.getSegmentCount()];
+            for (int i = 0; i < segments.length; i++) segments[i] = manifest.getSegmentFile(i);
+            mFrameCount = manifest.getFrameCount();
+        } else {
+            segments = new File[] {mSource};
+        }
+        CsvWriter writer = null;
+        try {
+            int[] frames = null;
+            final int[] flags = new int[BLOCK_FRAMES];
+            for (int i = 0; i < segments.length && !mCancelled; i++) {
+                final SessionReader reader = new SessionReader(segments[i]);
+                try {
+                    final SessionHeader header = reader.getHeader();
+                    if (writer == null) {
+                        //timestamps run on from the first segment's start
+                        writer = new CsvWriter(mDestination, header);
+                        frames = new int[BLOCK_FRAMES * header.getChannelCount()];
+                        if (segments.length == 1) mFrameCount = reader.getFrameCount();
+                    } else if (header.getChannelCount() * BLOCK_FRAMES != frames.length) {
+                        throw new IOException("channel count changes in " + segments[i]);
+                    }
+                    int n;
+                    while (!mCancelled && (n = reader.read(frames, flags, BLOCK_FRAMES)) > 0) {
+                        writer.writeFrames(frames, flags, n);
+                        mFramesWritten += n;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            if (writer != null) writer.close();
+        }
+    }
+}
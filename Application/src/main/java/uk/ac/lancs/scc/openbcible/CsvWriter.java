@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Streams a sample stream into the text format written by the OpenBCI GUI ("OpenBCI-RAW" files),
+ * so that tools which read GUI recordings can read ours:
+ *
+ *   %OpenBCI Raw EXG Data
+ *   %Number of channels = 8
+ *   %Sample Rate = 250 Hz
+ *   %Board = OpenBCI_GUI$BoardCytonSerial
+ *   Sample Index, EXG Channel 0, ..., EXG Channel 7, Timestamp, Timestamp (Formatted)
+ *   0, -12.34, ..., 1500000000.000000, 2017-07-14 02:40:00.000
+ *
+ * Channels are in microvolts with two decimals; the timestamp is Unix time in seconds. The
+ * sample index counts 0-255 like the Cyton's packet counter. Accelerometer and other auxiliary
+ * columns are not recorded and are left out; readers find the columns by name.
+ *
+ * Rows are formatted by hand straight into a large reusable byte buffer (the format is ASCII),
+ * which is written out whenever it fills; nothing is allocated per frame apart from one
+ * formatted date per second of data.
+ */
+public class CsvWriter implements SampleSink {
+    public static final String FILE_EXTENSION = ".txt";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FileOutputStream mOut;
+    private final int mChannels;
+    //hundredths of a microvolt per count
+    private final double[] mScale;
+    private final long mStartMicros;
+    private final double mMicrosPerFrame;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mFill;
+    //longest row that can be formatted, so a row is only started when it fits
+    private final int mMaxRowLength;
+    private final byte[] mDigits = new byte[20];
+
+    //the formatted date is redone once per second
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.", Locale.US);
+    private long mFormattedSecond = Long.MIN_VALUE;
+    private byte[] mFormattedDate;
+
+    private long mFramesWritten;
+    private boolean mClosed;
+
+    /**
+     * Creates (or overwrites) the file and writes the header.
+     */
+    public CsvWriter(File file, SessionHeader header) throws IOException {
+        mChannels = header.getChannelCount();
+        mScale = new double[mChannels];
+        for (int c = 0; c < mChannels; c++) mScale[c] = header.getScaleFactor(c) * 100;
+        mStartMicros = header.getStartTimeMillis() * 1000;
+        mMicrosPerFrame = 1e6 / header.getSampleRate();
+        mMaxRowLength = 8 + mChannels * 24 + 64;
+        mOut = new FileOutputStream(file);
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("%OpenBCI Raw EXG Data\n");
+        sb.append("%Number of channels = ").append(mChannels).append('\n');
+        sb.append("%Sample Rate = ").append(Math.round(header.getSampleRate())).append(" Hz\n");
+        sb.append("%Board = OpenBCI_GUI$").append(mChannels == GanglionDecoder.NUM_CHANNELS
+                ? "BoardGanglionBLE" : "BoardCytonSerial").append('\n');
+        sb.append("Sample Index");
+        for (int c = 0; c < mChannels; c++) sb.append(", EXG Channel ").append(c);
+        sb.append(", Timestamp, Timestamp (Formatted)\n");
+        final byte[] bytes = sb.toString().getBytes(ASCII);
+        System.arraycopy(bytes, 0, mBuffer, 0, bytes.length);
+        mFill = bytes.length;
+    }
+
+    @Override
+    public void writeFrames(int[] frames, int[] flags, int count) throws IOException {
+        for (int f = 0, i = 0; f < count; f++) {
+            if (mFill + mMaxRowLength > mBuffer.length) flush();
+            final long frame = mFramesWritten + f;
+            putLong(frame & 0xFF);
+            for (int c = 0; c < mChannels; c++, i++) {
+                putComma();
+                putFixed(Math.round(frames[i] * mScale[c]), 2);
+            }
+            final long micros = mStartMicros + Math.round(frame * mMicrosPerFrame);
+            putComma();
+            putFixed(micros, 6);
+            putComma();
+            putDate(micros / 1000);
+            mBuffer[mFill++] = '\n';
+        }
+        mFramesWritten += count;
+    }
+
+    /**
+     * Writes out the buffer and forces the file to storage.
+     */
+    @Override
+    public void sync() throws IOException {
+        flush();
+        mOut.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    private void flush() throws IOException {
+        mOut.write(mBuffer, 0, mFill);
+        mFill = 0;
+    }
+
+    private void putComma() {
+        mBuffer[mFill++] = ',';
+        mBuffer[mFill++] = ' ';
+    }
+
+    // Appends 'value' in decimal.
+    private void putLong(long value) {
+        if (value < 0) {
+            mBuffer[mFill++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) mBuffer[mFill++] = mDigits[--n];
+    }
+
+    // Appends value / 10^decimals with exactly 'decimals' digits after the point.
+    private void putFixed(long value, int decimals) {
+        if (value < 0) {
+            mBuffer[mFill++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0 || n <= decimals);
+        while (n > decimals) mBuffer[mFill++] = mDigits[--n];
+        mBuffer[mFill++] = '.';
+        while (n > 0) mBuffer[mFill++] = mDigits[--n];
+    }
+
+    // Appends "yyyy-MM-dd HH:mm:ss.SSS" in local time.
+    private void putDate(long millis) {
+        final long second = millis / 1000;
+        if (second != mFormattedSecond) {
+            mFormattedDate = mDateFormat.format(new Date(second * 1000)).getBytes(ASCII);
+            mFormattedSecond = second;
+        }
+        System.arraycopy(mFormattedDate, 0, mBuffer, mFill, mFormattedDate.length);
+        mFill += mFormattedDate.length;
+        final int ms = (int) (millis - second * 1000);
+        mBuffer[mFill++] = (byte) ('0' + ms / 100);
+        mBuffer[mFill++] = (byte) ('0' + ms / 10 % 10);
+        mBuffer[mFill++] = (byte) ('0' + ms % 10);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Reassembles the 33-byte OpenBCI Cyton packets that the RFDuino splits across 20-byte
+ * notifications on the Cyton RECEIVE characteristic.
+ *
+ * Packet layout:
+ *   0       header, 0xA0
+ *   1       sample number
+ *   2-25    8 channels, 24-bit signed big-endian
+ *   26-31   3 aux values, 16-bit signed big-endian (accelerometer when the footer is 0xC0)
+ *   32      footer, 0xC0-0xCF
+ *
+ * Bytes are fed in as they arrive, regardless of how they were fragmented. A packet is only
+ * accepted when it starts with the header and ends with a footer; otherwise a framing error is
+ * reported and the parser rescans the bytes it already holds for the next header, so a dropped
+ * fragment costs at most the packet it belonged to. Decoded values are written into arrays owned
+ * by the parser and handed to the {@code Listener}; nothing is allocated per packet.
+ */
+public class CytonPacketParser {
+    public static final int PACKET_LENGTH = 33;
+    public static final int NUM_CHANNELS = 8;
+    public static final int NUM_AUX = 3;
+    public static final int SAMPLE_RATE_HZ = 250;
+
+    //scale factors from counts to microvolts (ADS1299, 4.5V reference, x24 gain) and to g
+    public static final double SCALE_FACTOR_UV = 4.5 * 1000000 / 24 / 8388607.0;
+    public static final double SCALE_FACTOR_ACCEL_G = 0.002 / 16;
+
+    private static final int HEADER = 0xA0;
+    private static final int FOOTER_MASK = 0xF0;
+    private static final int FOOTER = 0xC0;
+    private static final int OFFSET_SAMPLE_NUMBER = 1;
+    private static final int OFFSET_CHANNELS = 2;
+    private static final int OFFSET_AUX = OFFSET_CHANNELS + NUM_CHANNELS * 3;
+    private static final int OFFSET_FOOTER = PACKET_LENGTH - 1;
+
+    /**
+     * Receives parsed packets and framing errors. The arrays passed to {@code onPacket} are
+     * reused for the next packet, so copy anything that must outlive the call.
+     */
+    public interface Listener {
+        void onPacket(int sampleNumber, int[] channels, int[] aux, int footer);
+
+        /**
+         * @param discardedBytes Number of bytes thrown away while resynchronising.
+         */
+        void onFramingError(int discardedBytes);
+    }
+
+    private final Listener mListener;
+    private final byte[] mPacket = new byte[PACKET_LENGTH];
+    private final int[] mChannels = new int[NUM_CHANNELS];
+    private final int[] mAux = new int[NUM_AUX];
+    private int mFill;
+    private int mDiscarded;
+
+    private long mPacketCount;
+    private long mFramingErrors;
+    private long mDiscardedBytes;
+
+    public CytonPacketParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Feeds received bytes, e.g. one notification's value.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final byte b = data[i];
+            if (mFill == 0 && (b & 0xFF) != HEADER) {
+                mDiscarded++;
+                continue;
+            }
+            if (mFill == 0 && mDiscarded > 0) {
+                //found a header after skipping junk
+                reportFramingError();
+            }
+            mPacket[mFill++] = b;
+            if (mFill == PACKET_LENGTH) {
+                if ((mPacket[OFFSET_FOOTER] & FOOTER_MASK) == FOOTER) {
+                    decodePacket();
+                    mFill = 0;
+                } else {
+                    resync();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops any partially assembled packet, e.g. after a reconnect.
+     */
+    public void reset() {
+        mFill = 0;
+        mDiscarded = 0;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getFramingErrors() {
+        return mFramingErrors;
+    }
+
+    public long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    private void decodePacket() {
+        for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+            final int o = OFFSET_CHANNELS + ch * 3;
+            mChannels[ch] = (((mPacket[o] & 0xFF) << 24)
+                    | ((mPacket[o + 1] & 0xFF) << 16)
+                    | ((mPacket[o + 2] & 0xFF) << 8)) >> 8;
+        }
+        for (int a = 0; a < NUM_AUX; a++) {
+            final int o = OFFSET_AUX + a * 2;
+            mAux[a] = (short) (((mPacket[o] & 0xFF) << 8) | (mPacket[o + 1] & 0xFF));
+        }
+        mPacketCount++;
+        mListener.onPacket(mPacket[OFFSET_SAMPLE_NUMBER] & 0xFF, mChannels, mAux,
+                mPacket[OFFSET_FOOTER] & 0xFF);
+    }
+
+    // The 33 bytes held do not form a packet. Keep everything from the next header onwards and
+    // carry on filling from there. If there is no header left the error is reported once the
+    // next one arrives, together with all the bytes skipped until then.
+    private void resync() {
+        int next = 1;
+        while (next < PACKET_LENGTH && (mPacket[next] & 0xFF) != HEADER) next++;
+        mDiscarded += next;
+        mFill = PACKET_LENGTH - next;
+        System.arraycopy(mPacket, next, mPacket, 0, mFill);
+        if (mFill > 0) reportFramingError();
+    }
+
+    private void reportFramingError() {
+        mFramingErrors++;
+        mDiscardedBytes += mDiscarded;
+        final int discarded = mDiscarded;
+        mDiscarded = 0;
+        mListener.onFramingError(discarded);
+    }
+}
@@ -31,9 +31,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -42,6 +45,7 @@ import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -61,6 +65,7 @@ public class DeviceControlActivity extends Activity {
     private static int mCommandIdx = 0;
     private TextView mConnectionState;
     private TextView mDataField;
+    private TextView mRawDataField;
     private String mDeviceName;
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
@@ -70,6 +75,10 @@ public class DeviceControlActivity extends Activity {
     private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyOnRead;
 
+    private ConnectionProfile mConnectionProfile;
+    private static final String PREFS_NAME = "connection_profiles";
+    private static final String PREF_HIGH_THROUGHPUT = "high_throughput_";
+
     private boolean mIsDeviceGanglion;
     private boolean mIsDeviceCyton;
     private boolean mIsUnknownCharacteristic;
@@ -77,6 +86,37 @@ public class DeviceControlActivity extends Activity {
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
 
+    //decoded samples are pulled from the service's ring buffer at this period; the decimated
+    //stream when the service provides one, which the display is registered for while resumed
+    private static final long SAMPLE_POLL_PERIOD = 100;
+    private static final int SAMPLE_BATCH_FRAMES = 256;
+    private final Handler mHandler = new Handler();
+    private boolean mDspAcquired;
+    private SampleRingBuffer mSampleBuffer;
+    private SampleRingBuffer.Cursor mSampleCursor;
+    private int[] mSampleBatch;
+    private long mSamplesReceived;
+
+    //the raw packet view is redrawn at most once per display frame, showing only the newest packet
+    private byte[] mRawPacket;
+    private char[] mRawPacketChars;
+    private long mRawPacketSequence = -1;
+
+    private final Choreographer.FrameCallback mRawPacketRenderer = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            renderRawPacket();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    private final Runnable mSamplePoller = new Runnable() {
+        @Override
+        public void run() {
+            pollSamples();
+            mHandler.postDelayed(this, SAMPLE_POLL_PERIOD);
+        }
+    };
 
 
     // Code to manage Service lifecycle.
@@ -89,6 +129,7 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.setConnectionProfile(mConnectionProfile);
             // Automatically connects to the device upon successful start-up initialization.
             Log.v(TAG,"Trying to connect to GATTServer on: "+mDeviceName+" Address: "+mDeviceAddress );
             mBluetoothLeService.connect(mDeviceAddress);
@@ -99,6 +140,7 @@ public class DeviceControlActivity extends Activity {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mDspAcquired = false;
         }
     };
 
@@ -256,6 +298,8 @@ public class DeviceControlActivity extends Activity {
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
         mDataField.setText(R.string.no_data);
+        mRawDataField.setText(R.string.no_data);
+        mRawPacketSequence = -1;
     }
 
     @Override
@@ -280,6 +324,11 @@ public class DeviceControlActivity extends Activity {
              mIsDeviceGanglion = false;mIsDeviceCyton = false;
         }
 
+        //restore the user's high-throughput choice for this kind of board
+        mConnectionProfile = ConnectionProfile.forDeviceName(mDeviceName);
+        mConnectionProfile.setHighThroughput(getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getBoolean(PREF_HIGH_THROUGHPUT + mConnectionProfile.getName(), false));
+
         if(mIsDeviceCyton||mIsDeviceGanglion){//if it is a desirable device
             Toast.makeText(getApplicationContext(), "OpenBCI " + (mIsDeviceCyton?"Cyton":"Ganglion") + " Connected", Toast.LENGTH_SHORT).show();
         }
@@ -290,6 +339,7 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setOnChildClickListener(servicesListClickListner);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mDataField = (TextView) findViewById(R.id.data_value);
+        mRawDataField = (TextView) findViewById(R.id.raw_value);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -303,6 +353,8 @@ public class DeviceControlActivity extends Activity {
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mHandler.post(mSamplePoller);
+        Choreographer.getInstance().postFrameCallback(mRawPacketRenderer);
         if (mBluetoothLeService != null) {
 
             Log.v(TAG,"Trying to connect to: "+mDeviceName+" Address: "+mDeviceAddress);
@@ -315,6 +367,12 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mHandler.removeCallbacks(mSamplePoller);
+        Choreographer.getInstance().removeFrameCallback(mRawPacketRenderer);
+        if (mDspAcquired && mBluetoothLeService != null) mBluetoothLeService.releaseDsp();
+        mDspAcquired = false;
+        //the app may be killed from here on; make the recording so far durable
+        if (mBluetoothLeService != null) mBluetoothLeService.syncRecording();
     }
 
     @Override
@@ -334,6 +392,15 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_high_throughput).setChecked(mConnectionProfile.isHighThroughput());
+        final boolean recording = mBluetoothLeService != null && mBluetoothLeService.isRecording();
+        menu.findItem(R.id.menu_record).setTitle(
+                recording ? R.string.menu_stop_recording : R.string.menu_record);
+        menu.findItem(R.id.menu_record_bdf).setVisible(!recording);
+        menu.findItem(R.id.menu_record_csv).setVisible(!recording);
+        final boolean capturing = mBluetoothLeService != null && mBluetoothLeService.isCapturing();
+        menu.findItem(R.id.menu_capture).setTitle(
+                capturing ? R.string.menu_stop_capture : R.string.menu_capture);
         return true;
     }
 
@@ -349,6 +416,65 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_high_throughput:
+                //remembered per board type and applied to the live connection
+                final boolean highThroughput = !item.isChecked();
+                item.setChecked(highThroughput);
+                mConnectionProfile.setHighThroughput(highThroughput);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_HIGH_THROUGHPUT + mConnectionProfile.getName(), highThroughput)
+                        .apply();
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.setConnectionProfile(mConnectionProfile);
+                }
+                return true;
+            case R.id.menu_record:
+            case R.id.menu_record_bdf:
+            case R.id.menu_record_csv:
+                if (mBluetoothLeService == null) return true;
+                if (mBluetoothLeService.isRecording()) {
+                    mBluetoothLeService.stopRecording();
+                } else {
+                    final int format;
+                    switch (item.getItemId()) {
+                        case R.id.menu_record_bdf:
+                            format = BluetoothLeService.RECORDING_FORMAT_BDF;
+                            break;
+                        case R.id.menu_record_csv:
+                            format = BluetoothLeService.RECORDING_FORMAT_CSV;
+                            break;
+                        default:
+                            format = BluetoothLeService.RECORDING_FORMAT_SESSION;
+                            break;
+                    }
+                    final File file = mBluetoothLeService.startRecording(format);
+                    final long remaining = mBluetoothLeService.getRemainingRecordingMillis();
+                    final String message;
+                    if (file == null) {
+                        message = getString(R.string.recording_failed);
+                    } else if (remaining >= 0) {
+                        message = getString(R.string.recording_to_remaining, file.getName(),
+                                remaining / 60000);
+                    } else {
+                        message = getString(R.string.recording_to, file.getName());
+                    }
+                    Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+                }
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_capture:
+                if (mBluetoothLeService == null) return true;
+                if (mBluetoothLeService.isCapturing()) {
+                    mBluetoothLeService.stopCapture();
+                } else {
+                    final File file = mBluetoothLeService.startCapture();
+                    if (file != null) {
+                        Toast.makeText(this, getString(R.string.recording_to, file.getName()),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+                invalidateOptionsMenu();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -371,6 +497,68 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
+    // Shows the newest raw stream packet in hex, skipping the work if none arrived since the last
+    // frame. Packets in between are never formatted.
+    private void renderRawPacket() {
+        if (mBluetoothLeService == null) return;
+        final PacketSnapshot snapshot = mBluetoothLeService.getLatestPacket();
+        final long sequence = snapshot.getSequence();
+        if (sequence == mRawPacketSequence) return;
+        mRawPacketSequence = sequence;
+
+        if (mRawPacket == null) {
+            mRawPacket = new byte[snapshot.getCapacity()];
+            mRawPacketChars = new char[snapshot.getCapacity() * HexFormatter.CHARS_PER_BYTE];
+        }
+        final int length = snapshot.copyTo(mRawPacket);
+        final int chars = HexFormatter.format(mRawPacket, 0, length, mRawPacketChars, 0);
+        mRawDataField.setText(mRawPacketChars, 0, chars);
+    }
+
+    // Drains whatever the service has decoded since the last poll and shows the newest frame.
+    private void pollSamples() {
+        if (mBluetoothLeService == null) return;
+        if (!mDspAcquired) {
+            mBluetoothLeService.acquireDsp();
+            mDspAcquired = true;
+        }
+        SampleRingBuffer buffer = mBluetoothLeService.getDecimatedSampleBuffer();
+        if (buffer == null) buffer = mBluetoothLeService.getSampleBuffer();
+        if (buffer == null) return;
+        if (buffer != mSampleBuffer) {//first poll, the service switched boards or decimation
+            mSampleBuffer = buffer;
+            mSampleCursor = buffer.newCursor();
+            mSampleBatch = new int[SAMPLE_BATCH_FRAMES * buffer.getChannelCount()];
+            mSamplesReceived = 0;
+        }
+
+        int frames;
+        int lastFrames = 0;
+        while ((frames = mSampleCursor.read(mSampleBatch, SAMPLE_BATCH_FRAMES)) > 0) {
+            mSamplesReceived += frames;
+            lastFrames = frames;
+        }
+        if (lastFrames == 0) return;
+
+        final int channels = buffer.getChannelCount();
+        final StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("Samples: ").append(mSamplesReceived)
+                .append(" Dropped: ").append(mSampleCursor.getDroppedFrames());
+        final PacketSequenceTracker sequence = mBluetoothLeService.getPacketSequenceTracker();
+        if (sequence != null) {
+            stringBuilder.append("\nLost packets: ").append(sequence.getLostPackets())
+                    .append(" (").append(Math.round(sequence.getWindowLossRate() * 1000) / 10f)
+                    .append("% last window)");
+        }
+        stringBuilder.append("\nMTU: ").append(mBluetoothLeService.getNegotiatedMtu())
+                .append(" Priority: ").append(mBluetoothLeService.getConnectionPriority())
+                .append('\n');
+        for (int ch = 0; ch < channels; ch++) {
+            stringBuilder.append(mSampleBatch[(lastFrames - 1) * channels + ch]).append(' ');
+        }
+        displayData(stringBuilder.toString());
+    }
+
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
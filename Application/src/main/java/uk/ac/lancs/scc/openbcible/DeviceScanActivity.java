@@ -29,11 +29,18 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -46,6 +53,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
 
 /**
@@ -61,6 +71,24 @@ public class DeviceScanActivity extends ListActivity {
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // Results are delivered in batches this often when the controller can queue them.
+    private static final long SCAN_REPORT_DELAY = 500;
+    // The device list is redrawn at most this often, however many advertisements arrive.
+    private static final long LIST_REFRESH_INTERVAL = 250;
+    // Devices not heard from for this long are dropped from the list. Only checked while
+    // scanning, so it must be well inside SCAN_PERIOD; boards advertise several times a second.
+    private static final long DEVICE_EXPIRY = 4000;
+    // In low-power mode the controller listens for ~0.5 s of every this many ms (AOSP default),
+    // so a board in range can go unheard for a whole interval.
+    private static final long LOW_POWER_SCAN_INTERVAL = 5120;
+    // Missing this many low-power intervals drops a device; that outlasts SCAN_PERIOD, so in
+    // low-power mode the list only grows until the next scan.
+    private static final int LOW_POWER_EXPIRY_INTERVALS = 3;
+
+    private BluetoothLeScanner mBluetoothLeScanner;
+    // Scan only for OpenBCI boards, filtered by the controller, unless the user asks for all.
+    private boolean mShowAllDevices = false;
+    private boolean mLowPowerScan = false;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -100,6 +128,8 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.menu_show_all).setChecked(mShowAllDevices);
+        menu.findItem(R.id.menu_low_power).setChecked(mLowPowerScan);
         if (!mScanning) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
@@ -125,6 +155,14 @@ public class DeviceScanActivity extends ListActivity {
                 Log.v(TAG,"Stopping LE Scan");
                 scanLeDevice(false);
                 break;
+            case R.id.menu_show_all:
+                mShowAllDevices = !mShowAllDevices;
+                restartScan();
+                break;
+            case R.id.menu_low_power:
+                mLowPowerScan = !mLowPowerScan;
+                restartScan();
+                break;
         }
         return true;
     }
@@ -180,8 +218,7 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         startActivity(intent);
     }
@@ -189,48 +226,166 @@ public class DeviceScanActivity extends ListActivity {
     private void scanLeDevice(final boolean enable) {
         if (enable) {
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    Log.v(TAG,"Ending LE Scan after timeout");
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+            mHandler.postDelayed(mScanTimeout, SCAN_PERIOD);
 
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback); ///yes this is deprecated, but there isn't a decent enough example for the replacement to emulate
+            mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (mBluetoothLeScanner == null) {
+                Log.w(TAG, "BluetoothLeScanner not available, is Bluetooth on?");
+                mScanning = false;
+            } else {
+                mScanning = true;
+                mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
+                mHandler.removeCallbacks(mListRefresher);
+                mHandler.postDelayed(mListRefresher, LIST_REFRESH_INTERVAL);
+            }
         } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);///yes this is deprecated, but there isn't a decent enough example to emulate
+            mHandler.removeCallbacks(mScanTimeout);
+            stopScan();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    private void stopScan() {
+        if (mScanning && mBluetoothLeScanner != null) {
+            //deliver whatever the controller is still holding before the scan goes away
+            mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+        mScanning = false;
+        mHandler.removeCallbacks(mListRefresher);
+        mLeDeviceListAdapter.refresh();
+    }
+
+    private void restartScan() {
+        if (!mScanning) {
+            invalidateOptionsMenu();
+            return;
+        }
+        scanLeDevice(false);
+        mLeDeviceListAdapter.clear();
+        mLeDeviceListAdapter.refresh();
+        scanLeDevice(true);
+    }
+
+    // Applies the scan results gathered since the last tick to the list, while scanning.
+    private final Runnable mListRefresher = new Runnable() {
+        @Override
+        public void run() {
+            mLeDeviceListAdapter.expireDevices(SystemClock.elapsedRealtime() - deviceExpiry());
+            mLeDeviceListAdapter.refresh();
+            mHandler.postDelayed(this, LIST_REFRESH_INTERVAL);
+        }
+    };
+
+    private final Runnable mScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.v(TAG,"Ending LE Scan after timeout");
+            stopScan();
+            invalidateOptionsMenu();
+        }
+    };
+
+    // Matches the service UUIDs the Ganglion (Simblee) and Cyton (RFDuino) advertise, so the
+    // controller drops every other advertiser before it reaches the app.
+    private List<ScanFilter> buildScanFilters() {
+        final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        if (mShowAllDevices) return filters;
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString(SampleGattAttributes.UUID_GANGLION_SERVICE))
+                .build());
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString(SampleGattAttributes.UUID_CYTON_SERVICE))
+                .build());
+        return filters;
+    }
+
+    private long deviceExpiry() {
+        return mLowPowerScan
+                ? LOW_POWER_EXPIRY_INTERVALS * LOW_POWER_SCAN_INTERVAL : DEVICE_EXPIRY;
+    }
+
+    private ScanSettings buildScanSettings() {
+        final ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(mLowPowerScan
+                        ? ScanSettings.SCAN_MODE_LOW_POWER : ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(SCAN_REPORT_DELAY);
+        }
+        return builder.build();
+    }
+
+    // A device seen while scanning, with its most recent advertisement.
+    private static class ScannedDevice {
+        final BluetoothDevice device;
+        int rssi;
+        long lastSeen;      //elapsedRealtime millis
+
+        ScannedDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    // Adapter for holding devices found through scanning. Results update the map straight away;
+    // the list itself only changes when refresh() is called.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        //keyed by address, so repeated advertisements are O(1) updates
+        private HashMap<String, ScannedDevice> mDeviceMap;
+        //devices in discovery order, as shown in the list
+        private ArrayList<ScannedDevice> mLeDevices;
+        private boolean mDirty;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mDeviceMap = new HashMap<String, ScannedDevice>();
+            mLeDevices = new ArrayList<ScannedDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        public void addDevice(ScanResult result) {
+            final BluetoothDevice device = result.getDevice();
+            ScannedDevice entry = mDeviceMap.get(device.getAddress());
+            if (entry == null) {
+                entry = new ScannedDevice(device);
+                mDeviceMap.put(device.getAddress(), entry);
+                mLeDevices.add(entry);
+            }
+            entry.rssi = result.getRssi();
+            //batched results arrive late, so use the time the advertisement was received
+            entry.lastSeen = result.getTimestampNanos() / 1000000;
+            mDirty = true;
+        }
+
+        // Drops devices last seen before the given elapsedRealtime.
+        public void expireDevices(long seenBefore) {
+            final Iterator<ScannedDevice> it = mLeDevices.iterator();
+            while (it.hasNext()) {
+                final ScannedDevice entry = it.next();
+                if (entry.lastSeen < seenBefore) {
+                    it.remove();
+                    mDeviceMap.remove(entry.device.getAddress());
+                    mDirty = true;
+                }
+            }
+        }
+
+        // Redraws the list if anything changed since the last call.
+        public void refresh() {
+            if (mDirty) {
+                mDirty = false;
+                notifyDataSetChanged();
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
         }
 
         public void clear() {
+            mDeviceMap.clear();
             mLeDevices.clear();
+            mDirty = true;
         }
 
         @Override
@@ -240,7 +395,7 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).device;
         }
 
         @Override
@@ -262,35 +417,40 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            ScannedDevice entry = mLeDevices.get(i);
+            final String deviceName = entry.device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(getString(R.string.device_address_rssi,
+                    entry.device.getAddress(), entry.rssi));
 
             return view;
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-
-                           // Log.v(TAG,"Found LE Device "+ device.getName());
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
+    // Device scan callback. BluetoothLeScanner delivers results on the main thread.
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mLeDeviceListAdapter.addDevice(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                mLeDeviceListAdapter.addDevice(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "LE Scan failed: " + errorCode);
+            mScanning = false;
+            invalidateOptionsMenu();
+        }
+    };
 
     static class ViewHolder {
         TextView deviceName;
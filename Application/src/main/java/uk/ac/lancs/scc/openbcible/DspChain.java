@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * The live processing of a sample stream: samples are converted to microvolts, filtered with a
+ * mains notch and band-pass ({@code BiquadFilterBank}), and fed to a {@code WelchPsd} and a
+ * {@code BandPowerTracker}. The work is spread over the cores by a {@code DspScheduler}, with
+ * one PSD estimator and band tracker per partition of channels; this class maps channels back to
+ * them for readers. Optionally, the filtered stream is also decimated ({@code PolyphaseDecimator})
+ * and published to a {@code SampleRingBuffer} of its own, for consumers such as the display that
+ * don't need every sample.
+ *
+ * Meant to be driven by a {@code SampleStreamWriter}, which gives it its own thread. Readers may
+ * pull spectra and band powers from any thread. A frame flagged with
+ * {@code SampleRingBuffer.FLAG_GAP} restarts all processing, so nothing is filtered or averaged
+ * across the gap.
+ */
+public class DspChain implements SampleSink {
+    public static final float DEFAULT_MAINS_HZ = 50;
+    public static final float DEFAULT_LOW_HZ = 1;
+    public static final float DEFAULT_HIGH_HZ = 50;
+    public static final int FILTER_ORDER = 4;
+
+    //Welch segments of about a second, half overlapped, averaged over about four seconds
+    private static final int PSD_AVERAGES = 8;
+    //band powers over a one second window, published ten times a second
+    private static final float BAND_PUBLISH_HZ = 10;
+    private static final float BAND_SMOOTHING_SECONDS = 1;
+    //frames of decimated output kept for its consumers
+    private static final int DECIMATED_BUFFER_SECONDS = 30;
+
+    private final int mChannels;
+    private final float mSampleRate;
+    private final float[] mScale;
+    private final int mMaxBlockFrames;
+    private final float[] mBlock;
+
+    private final BiquadFilterBank mFilters;
+    private final DspScheduler mScheduler;
+    private final WelchPsd[] mPsd;
+    private final BandPowerTracker[] mBandPower;
+    private final PolyphaseDecimator[] mDecimators;
+
+    //the decimated stream, converted back to counts so that the header's scale factors apply
+    private final SampleRingBuffer mDecimatedBuffer;
+    private final float mDecimatedRate;
+    private final float[] mDecimated;
+    private final int[] mDecimatedCounts;
+    private final int[] mDecimatedFrames;
+    private int mDecimatedFlags;
+
+    /**
+     * Builds the chain for a stream described by {@code header}, filtering with the default
+     * corners.
+     *
+     * @param maxBlockFrames Most frames passed to {@code writeFrames} at once; larger batches are
+     *                       split.
+     * @param threads Threads to spread the channels over, or 0 for one per core.
+     * @param mainsHz Mains frequency to notch out, or 0 for none.
+     * @param decimation Factors of the chain of decimators producing the decimated stream, or
+     *                   null for none.
+     */
+    public DspChain(SessionHeader header, int maxBlockFrames, int threads, float mainsHz,
+                    int[] decimation) {
+        mChannels = header.getChannelCount();
+        mSampleRate = header.getSampleRate();
+        mScale = new float[mChannels];
+        for (int c = 0; c < mChannels; c++) mScale[c] = (float) header.getScaleFactor(c);
+        mMaxBlockFrames = maxBlockFrames;
+        mBlock = new float[maxBlockFrames * mChannels];
+
+        mFilters = new BiquadFilterBank(mChannels, 1 + FILTER_ORDER);
+        mFilters.configure(mSampleRate, mainsHz, DEFAULT_LOW_HZ,
+                Math.min(DEFAULT_HIGH_HZ, mSampleRate * 0.45f), FILTER_ORDER);
+
+        mScheduler = new DspScheduler(mChannels, threads);
+        final int partitions = mScheduler.getPartitionCount();
+        mPsd = new WelchPsd[partitions];
+        mBandPower = new BandPowerTracker[partitions];
+        //the smallest power of two covering a second
+        final int fftSize = Integer.highestOneBit(Math.max(4, (int) mSampleRate - 1)) << 1;
+        final int bandWindow = Math.round(mSampleRate);
+
+        mScheduler.addStage(new DspScheduler.StageFactory() {
+            @Override
+            public DspScheduler.Stage create(int partition, final int firstChannel,
+                                             final int channelCount) {
+                return new DspScheduler.Stage() {
+                    @Override
+                    public void process(float[] frames, int count) {
+                        mFilters.process(frames, 0, count, firstChannel, channelCount);
+                    }
+                };
+            }
+        });
+        mScheduler.addStage(new DspScheduler.StageFactory() {
+            @Override
+            public DspScheduler.Stage create(int partition, final int firstChannel,
+                                             int channelCount) {
+                final WelchPsd psd = new WelchPsd(channelCount, mSampleRate, fftSize,
+                        fftSize / 2, PSD_AVERAGES);
+                mPsd[partition] = psd;
+                return new DspScheduler.Stage() {
+                    @Override
+                    public void process(float[] frames, int count) {
+                        psd.push(frames, 0, count, mChannels, firstChannel);
+                    }
+                };
+            }
+        });
+        mScheduler.addStage(new DspScheduler.StageFactory() {
+            @Override
+            public DspScheduler.Stage create(int partition, final int firstChannel,
+                                             int channelCount) {
+                final BandPowerTracker tracker = new BandPowerTracker(channelCount, mSampleRate,
+                        bandWindow, BandPowerTracker.DEFAULT_BANDS, BAND_PUBLISH_HZ,
+                        BAND_SMOOTHING_SECONDS, null);
+                mBandPower[partition] = tracker;
+                return new DspScheduler.Stage() {
+                    @Override
+                    public void process(float[] frames, int count) {
+                        tracker.push(frames, 0, count, mChannels, firstChannel);
+                    }
+                };
+            }
+        });
+        if (decimation != null && decimation.length > 0) {
+            int factor = 1;
+            for (int d : decimation) factor *= d;
+            mDecimatedRate = mSampleRate / factor;
+            mDecimatedBuffer = new SampleRingBuffer(mChannels,
+                    (int) Math.ceil(mDecimatedRate * DECIMATED_BUFFER_SECONDS));
+            mDecimated = new float[maxBlockFrames * mChannels];
+            mDecimatedCounts = new int[maxBlockFrames * mChannels];
+            mDecimatedFrames = new int[partitions];
+            mDecimators = new PolyphaseDecimator[partitions];
+            final int[] factors = decimation.clone();
+            mScheduler.addStage(new DspScheduler.StageFactory() {
+                @Override
+                public DspScheduler.Stage create(final int partition, final int firstChannel,
+                                                 int channelCount) {
+                    final PolyphaseDecimator decimator =
+                            PolyphaseDecimator.chain(channelCount, factors);
+                    mDecimators[partition] = decimator;
+                    return new DspScheduler.Stage() {
+                        @Override
+                        public void process(float[] frames, int count) {
+                            mDecimatedFrames[partition] = decimator.process(frames, 0, count,
+                                    mChannels, firstChannel, mDecimated, 0);
+                        }
+                    };
+                }
+            });
+        } else {
+            mDecimatedRate = 0;
+            mDecimatedBuffer = null;
+            mDecimated = null;
+            mDecimatedCounts = null;
+            mDecimatedFrames = null;
+            mDecimators = null;
+        }
+        mScheduler.start();
+    }
+
+    @Override
+    public void writeFrames(int[] frames, int[] flags, int count) {
+        for (int offset = 0, n; offset < count; offset += n) {
+            //blocks end before a gap, which is processed afresh
+            if (flags != null && (flags[offset] & SampleRingBuffer.FLAG_GAP) != 0) reset();
+            n = Math.min(count - offset, mMaxBlockFrames);
+            for (int f = 1; flags != null && f < n; f++) {
+                if ((flags[offset + f] & SampleRingBuffer.FLAG_GAP) != 0) n = f;
+            }
+            for (int f = 0, i = 0, j = offset * mChannels; f < n; f++) {
+                for (int c = 0; c < mChannels; c++) mBlock[i++] = frames[j++] * mScale[c];
+            }
+            mScheduler.process(mBlock, n);
+            if (mDecimatedBuffer != null) publishDecimated(flags, offset, n);
+        }
+    }
+
+    // Clears the state of every stage. The workers are idle between blocks, and see the change
+    // when the next block is handed to them.
+    private void reset() {
+        mFilters.reset();
+        for (int p = 0; p < mPsd.length; p++) {
+            mPsd[p].reset();
+            mBandPower[p].reset();
+            if (mDecimators != null) mDecimators[p].reset();
+        }
+    }
+
+    // Publishes what the decimators produced from the last block. Every partition sees the same
+    // frames, so all produce the same number. Flags of the input frames are carried over to the
+    // next decimated frame.
+    private void publishDecimated(int[] flags, int offset, int count) {
+        if (flags != null) {
+            for (int f = offset; f < offset + count; f++) mDecimatedFlags |= flags[f];
+        }
+        final int n = mDecimatedFrames[0];
+        if (n == 0) return;
+        for (int f = 0, i = 0; f < n; f++) {
+            for (int c = 0; c < mChannels; c++, i++) {
+                mDecimatedCounts[i] = Math.round(mDecimated[i] / mScale[c]);
+            }
+        }
+        int first = 0;
+        if (mDecimatedFlags != 0) {
+            mDecimatedBuffer.publish(mDecimatedCounts, 0, 1, mDecimatedFlags);
+            mDecimatedFlags = 0;
+            first = 1;
+        }
+        mDecimatedBuffer.publish(mDecimatedCounts, first * mChannels, n - first);
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+        mScheduler.shutdown();
+    }
+
+    public DspScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * @see DspScheduler#setSingleThreaded(boolean)
+     */
+    public void setSingleThreaded(boolean singleThreaded) {
+        mScheduler.setSingleThreaded(singleThreaded);
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * Returns the buffer the filtered, decimated stream is published to, in the same units as
+     * the input. Consumers take a {@code SampleRingBuffer.Cursor} from it as from the full-rate
+     * buffer.
+     *
+     * @return The buffer, or null if the chain was built without decimation.
+     */
+    public SampleRingBuffer getDecimatedBuffer() {
+        return mDecimatedBuffer;
+    }
+
+    /**
+     * @return The sample rate of the decimated stream, or 0 if there is none.
+     */
+    public float getDecimatedSampleRate() {
+        return mDecimatedRate;
+    }
+
+    public int getSpectrumBinCount() {
+        return mPsd[0].getBinCount();
+    }
+
+    public float getSpectrumBinFrequency(int bin) {
+        return mPsd[0].getBinFrequency(bin);
+    }
+
+    /**
+     * Copies the latest power spectral density of {@code channel}, in uV^2/Hz.
+     *
+     * @return The sequence number of the partition's spectra.
+     */
+    public long copySpectrum(int channel, float[] dst, int offset) {
+        final int partition = mScheduler.getPartition(channel);
+        return mPsd[partition].copySpectrum(
+                channel - mScheduler.getFirstChannel(partition), dst, offset);
+    }
+
+    public int getBandCount() {
+        return BandPowerTracker.DEFAULT_BANDS.length;
+    }
+
+    /**
+     * Copies the latest smoothed band powers in uV^2, band {@code b} of channel {@code c} at
+     * {@code c * getBandCount() + b}.
+     */
+    public void copyBandPowers(float[] dst) {
+        for (int p = 0; p < mBandPower.length; p++) {
+            mBandPower[p].copyBandPowers(dst, mScheduler.getFirstChannel(p) * getBandCount());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs per-channel DSP over blocks of interleaved frames on several cores. The channels are split
+ * into contiguous partitions, one per thread of a fixed pool sized to the cores (or the channel
+ * count, if smaller). Every stage is instantiated once per partition and only ever sees that
+ * partition's channels, so stages need no locking of their own.
+ *
+ * {@code process} works fork/join style: it hands the block to the workers, runs the first
+ * partition itself and returns once every partition is done. The hand-off is a volatile
+ * generation counter per worker and the join an atomic countdown, with threads parked in
+ * between; nothing on that path takes a lock or allocates. In single-threaded mode every
+ * partition is run in turn on the calling thread instead, which gives the same results in a
+ * fixed order, e.g. for tests.
+ *
+ * {@code process} must be called from one thread at a time. Has no Android dependencies.
+ */
+public class DspScheduler {
+    /**
+     * One step of processing for one partition's channels.
+     */
+    public interface Stage {
+        /**
+         * Processes this partition's channels of {@code count} frames, in place if it changes
+         * them. {@code frames} holds all channels, interleaved.
+         */
+        void process(float[] frames, int count);
+    }
+
+    /**
+     * Creates a stage for each partition.
+     */
+    public interface StageFactory {
+        Stage create(int partition, int firstChannel, int channelCount);
+    }
+
+    //how long the caller spins for the workers before parking
+    private static final int JOIN_SPINS = 2000;
+
+    private final int mChannels;
+    private final int mPartitions;
+    private final int[] mFirstChannel;
+    private final int[] mChannelCount;
+    private final List<List<Stage>> mStages = new ArrayList<List<Stage>>();
+    private Worker[] mWorkers;
+
+    private volatile boolean mSingleThreaded;
+    private volatile boolean mStopped;
+    //the block being processed; written before the generation counters are bumped
+    private float[] mFrames;
+    private int mCount;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile Thread mCaller;
+    private volatile RuntimeException mError;
+
+    private final class Worker implements Runnable {
+        final int mPartition;
+        final Thread mThread;
+        volatile long mGeneration;
+        long mDone;
+
+        Worker(int partition) {
+            mPartition = partition;
+            mThread = new Thread(this, "OpenBCIBLE-dsp-" + partition);
+            mThread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                final long generation = mGeneration;
+                if (generation == mDone) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    runPartition(mPartition);
+                } catch (RuntimeException e) {
+                    mError = e;
+                }
+                mDone = generation;
+                if (mPending.decrementAndGet() == 0) LockSupport.unpark(mCaller);
+            }
+        }
+    }
+
+    /**
+     * @param threads Size of the pool including the calling thread, or 0 for one per core.
+     */
+    public DspScheduler(int channels, int threads) {
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        mChannels = channels;
+        mPartitions = Math.max(1, Math.min(threads, channels));
+        mFirstChannel = new int[mPartitions];
+        mChannelCount = new int[mPartitions];
+        for (int p = 0; p < mPartitions; p++) {
+            mFirstChannel[p] = p * channels / mPartitions;
+            mChannelCount[p] = (p + 1) * channels / mPartitions - mFirstChannel[p];
+            mStages.add(new ArrayList<Stage>());
+        }
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getPartitionCount() {
+        return mPartitions;
+    }
+
+    public int getFirstChannel(int partition) {
+        return mFirstChannel[partition];
+    }
+
+    public int getChannelCount(int partition) {
+        return mChannelCount[partition];
+    }
+
+    /**
+     * @return The partition that processes {@code channel}.
+     */
+    public int getPartition(int channel) {
+        for (int p = mPartitions - 1; p > 0; p--) {
+            if (channel >= mFirstChannel[p]) return p;
+        }
+        return 0;
+    }
+
+    /**
+     * Appends a stage to every partition. Stages run in the order they were added. Must be
+     * called before {@code start}.
+     */
+    public void addStage(StageFactory factory) {
+        if (mWorkers != null) throw new IllegalStateException("already started");
+        for (int p = 0; p < mPartitions; p++) {
+            mStages.get(p).add(factory.create(p, mFirstChannel[p], mChannelCount[p]));
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        if (mWorkers != null) return;
+        mWorkers = new Worker[mPartitions - 1];
+        for (int w = 0; w < mWorkers.length; w++) {
+            mWorkers[w] = new Worker(w + 1);
+            mWorkers[w].mThread.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads and waits for them.
+     */
+    public void shutdown() {
+        mStopped = true;
+        if (mWorkers == null) return;
+        for (Worker worker : mWorkers) LockSupport.unpark(worker.mThread);
+        for (Worker worker : mWorkers) {
+            try {
+                worker.mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs every partition on the calling thread from the next block on, or goes back to the
+     * pool.
+     */
+    public void setSingleThreaded(boolean singleThreaded) {
+        mSingleThreaded = singleThreaded;
+    }
+
+    public boolean isSingleThreaded() {
+        return mSingleThreaded;
+    }
+
+    /**
+     * Runs every stage over {@code count} interleaved frames and waits until all partitions are
+     * done.
+     *
+     * @throws RuntimeException Whatever a stage threw.
+     */
+    public void process(float[] frames, int count) {
+        if (mSingleThreaded || mWorkers == null || mWorkers.length == 0 || mStopped) {
+            mFrames = frames;
+            mCount = count;
+            for (int p = 0; p < mPartitions; p++) runPartition(p);
+            return;
+        }
+        mFrames = frames;
+        mCount = count;
+        mCaller = Thread.currentThread();
+        mPending.set(mWorkers.length);
+        //the volatile writes publish the block to the workers
+        for (Worker worker : mWorkers) {
+            worker.mGeneration++;
+            LockSupport.unpark(worker.mThread);
+        }
+        RuntimeException error = null;
+        try {
+            runPartition(0);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        int spins = 0;
+        while (mPending.get() != 0) {
+            if (++spins < JOIN_SPINS) continue;
+            LockSupport.park(this);
+        }
+        if (error == null) error = mError;
+        mError = null;
+        if (error != null) throw error;
+    }
+
+    private void runPartition(int partition) {
+        final List<Stage> stages = mStages.get(partition);
+        final float[] frames = mFrames;
+        final int count = mCount;
+        for (int s = 0; s < stages.size(); s++) stages.get(s).process(frames, count);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Streams a sample stream into a BDF+ (24-bit) or EDF+ (16-bit) file, as read by EDFbrowser,
+ * MNE, EEGLAB etc. BDF+ keeps the boards' 24-bit samples exactly; EDF+ keeps the top 16 bits.
+ *
+ * Every signal is one channel in microvolts, plus an annotations signal. Data records last one
+ * second. Each record starts with the mandatory time-keeping annotation, followed by an event for
+ * every frame flagged with {@code SampleRingBuffer.FLAG_GAP} ("Packet loss") or at the start of
+ * a run of {@code FLAG_INTERPOLATED} frames ("Interpolated"). Events that do not fit in their
+ * record's annotation space are dropped and counted.
+ *
+ * Records are assembled in a block buffer and written {@code BLOCK_RECORDS} at a time, so memory
+ * use does not depend on the session length. The header says "-1" records while recording; the
+ * real count is written on close. A last, partial record is padded by repeating the last frame.
+ */
+public class EdfWriter implements SampleSink {
+    public static final String FILE_EXTENSION_BDF = ".bdf";
+    public static final String FILE_EXTENSION_EDF = ".edf";
+
+    //records buffered before each write
+    private static final int BLOCK_RECORDS = 16;
+    //bytes of annotation per record: the time-keeping TAL plus a few events
+    private static final int ANNOTATION_BYTES = 240;
+
+    private static final String LABEL_PACKET_LOSS = "Packet loss";
+    private static final String LABEL_INTERPOLATED = "Interpolated";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String[] MONTHS = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+            "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+
+    private final RandomAccessFile mFile;
+    private final boolean mBdf;
+    private final int mChannels;
+    private final int mBytesPerSample;
+    private final int mDigitalMin;
+    private final int mDigitalMax;
+    //right shift from 24-bit counts to the file's sample width
+    private final int mShift;
+
+    private final int mSamplesPerRecord;
+    private final int mRecordSize;
+    private final int mAnnotationOffset;
+    private final int mAnnotationSize;
+    private final float mSampleRate;
+
+    private final byte[] mBlock;
+    private int mBlockRecords;
+    //position in the record being filled
+    private int mRecordFill;
+    private int mAnnotationFill;
+
+    private final int[] mLastFrame;
+    private boolean mInInterpolatedRun;
+    private long mFramesWritten;
+    private long mRecordsWritten;
+    private long mDroppedAnnotations;
+    private boolean mClosed;
+
+    /**
+     * Creates (or overwrites) the file and writes the header.
+     *
+     * @param header Describes the stream; its sample rate must be a whole number of Hz.
+     * @param bdf True for BDF+, false for EDF+.
+     */
+    public EdfWriter(File file, SessionHeader header, boolean bdf) throws IOException {
+        mBdf = bdf;
+        mChannels = header.getChannelCount();
+        mBytesPerSample = bdf ? 3 : 2;
+        mDigitalMin = bdf ? -8388608 : -32768;
+        mDigitalMax = bdf ? 8388607 : 32767;
+        mShift = bdf ? 0 : 8;
+        mSampleRate = header.getSampleRate();
+        mSamplesPerRecord = Math.round(mSampleRate);
+        if (mSamplesPerRecord < 1 || mSamplesPerRecord != mSampleRate) {
+            throw new IllegalArgumentException("sample rate must be a whole number of Hz");
+        }
+        //the annotation signal is counted in samples of the file's width
+        mAnnotationSize = ANNOTATION_BYTES / mBytesPerSample * mBytesPerSample;
+        mAnnotationOffset = mChannels * mSamplesPerRecord * mBytesPerSample;
+        mRecordSize = mAnnotationOffset + mAnnotationSize;
+        mBlock = new byte[mRecordSize * BLOCK_RECORDS];
+        mLastFrame = new int[mChannels];
+
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mFile.write(buildHeader(header));
+        startRecord();
+    }
+
+    @Override
+    public void writeFrames(int[] frames, int[] flags, int count) throws IOException {
+        if (count == 0) return;
+        int base = mBlockRecords * mRecordSize;
+        for (int f = 0; f < count; f++) {
+            final int frameFlags = flags[f];
+            if ((frameFlags & SampleRingBuffer.FLAG_GAP) != 0) {
+                addEvent(LABEL_PACKET_LOSS);
+            }
+            final boolean interpolated = (frameFlags & SampleRingBuffer.FLAG_INTERPOLATED) != 0;
+            if (interpolated && !mInInterpolatedRun) addEvent(LABEL_INTERPOLATED);
+            mInInterpolatedRun = interpolated;
+
+            putFrame(frames, f * mChannels, base);
+            mFramesWritten++;
+            if (++mRecordFill == mSamplesPerRecord) {
+                finishRecord();
+                base = mBlockRecords * mRecordSize;
+            }
+        }
+        System.arraycopy(frames, (count - 1) * mChannels, mLastFrame, 0, mChannels);
+    }
+
+    /**
+     * Writes out the complete records buffered so far and syncs the file. The record count in
+     * the header is only written on close.
+     */
+    @Override
+    public void sync() throws IOException {
+        flushBlock();
+        mFile.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            if (mRecordFill > 0) {
+                final int base = mBlockRecords * mRecordSize;
+                while (mRecordFill < mSamplesPerRecord) {
+                    putFrame(mLastFrame, 0, base);
+                    mRecordFill++;
+                }
+                finishRecord();
+            }
+            flushBlock();
+            //patch the number of data records
+            mFile.seek(236);
+            mFile.write(field(Long.toString(mRecordsWritten), 8));
+        } finally {
+            mFile.close();
+        }
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    public long getRecordsWritten() {
+        return mRecordsWritten;
+    }
+
+    /**
+     * @return Events that did not fit in their record's annotation space.
+     */
+    public long getDroppedAnnotations() {
+        return mDroppedAnnotations;
+    }
+
+    // Writes one frame into the current record, which starts at 'base' in the block.
+    private void putFrame(int[] frames, int offset, int base) {
+        final int bps = mBytesPerSample;
+        for (int c = 0; c < mChannels; c++) {
+            int value = frames[offset + c] >> mShift;
+            if (value < mDigitalMin) value = mDigitalMin;
+            else if (value > mDigitalMax) value = mDigitalMax;
+            int i = base + (c * mSamplesPerRecord + mRecordFill) * bps;
+            mBlock[i++] = (byte) value;
+            mBlock[i++] = (byte) (value >> 8);
+            if (bps == 3) mBlock[i] = (byte) (value >> 16);
+        }
+    }
+
+    // Starts the annotation signal of the current record with its time-keeping TAL.
+    private void startRecord() {
+        final int base = mBlockRecords * mRecordSize + mAnnotationOffset;
+        Arrays.fill(mBlock, base, base + mAnnotationSize, (byte) 0);
+        mAnnotationFill = putOnset(base, mRecordsWritten * mSamplesPerRecord);
+        mBlock[base + mAnnotationFill++] = 0x14;
+        mBlock[base + mAnnotationFill++] = 0x14;
+        mBlock[base + mAnnotationFill++] = 0x00;
+    }
+
+    private void finishRecord() throws IOException {
+        mRecordsWritten++;
+        mRecordFill = 0;
+        if (++mBlockRecords == BLOCK_RECORDS) flushBlock();
+        startRecord();
+    }
+
+    // Writes out the complete records in the block. A record still being filled, e.g. when
+    // syncing, is moved to the start of the block and carries on there.
+    private void flushBlock() throws IOException {
+        if (mBlockRecords == 0) return;
+        final int complete = mBlockRecords * mRecordSize;
+        mFile.write(mBlock, 0, complete);
+        if (complete < mBlock.length) System.arraycopy(mBlock, complete, mBlock, 0, mRecordSize);
+        mBlockRecords = 0;
+    }
+
+    // Appends "+onset\x14label\x14\x00" for the frame about to be written.
+    private void addEvent(String label) {
+        final int base = mBlockRecords * mRecordSize + mAnnotationOffset;
+        //an onset takes at most 15 bytes for any realistic session, plus three separators
+        if (mAnnotationFill + 18 + label.length() > mAnnotationSize) {
+            mDroppedAnnotations++;
+            return;
+        }
+        int i = putOnset(base + mAnnotationFill, mRecordsWritten * mSamplesPerRecord + mRecordFill)
+                + base + mAnnotationFill;
+        mBlock[i++] = 0x14;
+        for (int k = 0; k < label.length(); k++) mBlock[i++] = (byte) label.charAt(k);
+        mBlock[i++] = 0x14;
+        mBlock[i++] = 0x00;
+        mAnnotationFill = i - base;
+    }
+
+    // Writes "+seconds[.fraction]" for the given frame index at 'pos' in the block and returns
+    // the number of bytes written. Formatted by hand, this runs on every record.
+    private int putOnset(int pos, long frame) {
+        final long seconds = frame / mSamplesPerRecord;
+        final long micros = (frame % mSamplesPerRecord) * 1000000L / mSamplesPerRecord;
+        int i = pos;
+        mBlock[i++] = '+';
+        i = putDecimal(i, seconds);
+        if (micros != 0) {
+            mBlock[i++] = '.';
+            long digits = micros;
+            int width = 6;
+            while (digits % 10 == 0) {
+                digits /= 10;
+                width--;
+            }
+            for (int d = width - 1; d >= 0; d--) {
+                mBlock[i + d] = (byte) ('0' + digits % 10);
+                digits /= 10;
+            }
+            i += width;
+        }
+        return i - pos;
+    }
+
+    private int putDecimal(int pos, long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) digits++;
+        for (int d = digits - 1; d >= 0; d--) {
+            mBlock[pos + d] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    private byte[] buildHeader(SessionHeader header) {
+        final int signals = mChannels + 1;
+        final int headerBytes = 256 * (signals + 1);
+        final StringBuilder sb = new StringBuilder(headerBytes);
+
+        final Calendar start = Calendar.getInstance();
+        start.setTimeInMillis(header.getStartTimeMillis());
+        final String equipment = edfPlusSubfield("OpenBCI_" + header.getProfileName() + "_"
+                + header.getDeviceAddress());
+
+        sb.append(pad(mBdf ? "BIOSEMI" : "0", 8));
+        sb.append(pad("X X X X", 80));
+        sb.append(pad(String.format(Locale.US, "Startdate %02d-%s-%04d X X %s",
+                start.get(Calendar.DAY_OF_MONTH), MONTHS[start.get(Calendar.MONTH)],
+                start.get(Calendar.YEAR), equipment), 80));
+        sb.append(pad(String.format(Locale.US, "%02d.%02d.%02d",
+                start.get(Calendar.DAY_OF_MONTH), start.get(Calendar.MONTH) + 1,
+                start.get(Calendar.YEAR) % 100), 8));
+        sb.append(pad(String.format(Locale.US, "%02d.%02d.%02d",
+                start.get(Calendar.HOUR_OF_DAY), start.get(Calendar.MINUTE),
+                start.get(Calendar.SECOND)), 8));
+        sb.append(pad(Integer.toString(headerBytes), 8));
+        sb.append(pad(mBdf ? "BDF+C" : "EDF+C", 44));
+        sb.append(pad("-1", 8));
+        sb.append(pad("1", 8));
+        sb.append(pad(Integer.toString(signals), 4));
+
+        final String annotationLabel = mBdf ? "BDF Annotations" : "EDF Annotations";
+        for (int c = 0; c < mChannels; c++) sb.append(pad("EEG " + (c + 1), 16));
+        sb.append(pad(annotationLabel, 16));
+        for (int s = 0; s < signals; s++) sb.append(pad(s < mChannels ? "AgAgCl electrode" : "", 80));
+        for (int s = 0; s < signals; s++) sb.append(pad(s < mChannels ? "uV" : "", 8));
+        //physical range is the digital range times scale * 2^shift, rounded to the 8 characters
+        //the field allows: readers' gain is then within 1e-6 of the true scale
+        for (int c = 0; c < mChannels; c++) {
+            sb.append(pad(number(mDigitalMin * scale(header, c)), 8));
+        }
+        sb.append(pad("-1", 8));
+        for (int c = 0; c < mChannels; c++) {
+            sb.append(pad(number(mDigitalMax * scale(header, c)), 8));
+        }
+        sb.append(pad("1", 8));
+        for (int s = 0; s < signals; s++) sb.append(pad(Integer.toString(mDigitalMin), 8));
+        for (int s = 0; s < signals; s++) sb.append(pad(Integer.toString(mDigitalMax), 8));
+        for (int s = 0; s < signals; s++) sb.append(pad("", 80));
+        for (int c = 0; c < mChannels; c++) sb.append(pad(Integer.toString(mSamplesPerRecord), 8));
+        sb.append(pad(Integer.toString(mAnnotationSize / mBytesPerSample), 8));
+        for (int s = 0; s < signals; s++) sb.append(pad("", 32));
+
+        final byte[] bytes = sb.toString().getBytes(ASCII);
+        //BDF's identification code starts with a 0xFF byte
+        if (mBdf) {
+            System.arraycopy(bytes, 0, bytes, 1, 7);
+            bytes[0] = (byte) 0xFF;
+        }
+        return bytes;
+    }
+
+    private double scale(SessionHeader header, int channel) {
+        return header.getScaleFactor(channel) * (1 << mShift);
+    }
+
+    private static byte[] field(String value, int width) {
+        return pad(value, width).getBytes(ASCII);
+    }
+
+    private static String pad(String value, int width) {
+        final StringBuilder sb = new StringBuilder(width);
+        for (int i = 0; i < value.length() && i < width; i++) {
+            final char ch = value.charAt(i);
+            sb.append(ch >= 32 && ch < 127 ? ch : '_');
+        }
+        while (sb.length() < width) sb.append(' ');
+        return sb.toString();
+    }
+
+    // Formats a physical limit in at most 8 characters, keeping as many decimals as fit.
+    private static String number(double value) {
+        for (int decimals = 6; decimals > 0; decimals--) {
+            final String s = String.format(Locale.US, "%." + decimals + "f", value);
+            if (s.length() <= 8) return s;
+        }
+        return Long.toString(Math.round(value));
+    }
+
+    // EDF+ subfields are separated by spaces, so none may contain one.
+    private static String edfPlusSubfield(String value) {
+        return value.replace(' ', '_');
+    }
+}
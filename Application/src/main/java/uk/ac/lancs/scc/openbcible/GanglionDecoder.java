@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Decodes the 20-byte packets notified on the Ganglion RECEIVE characteristic into 4-channel
+ * integer samples.
+ *
+ * Packet layout (first byte is the packet ID):
+ *   0        uncompressed: 4 x 24-bit signed big-endian samples, seeds the decompressor
+ *   1-100    18-bit compression: 2 samples x 4 channels of deltas
+ *   101-200  19-bit compression: 2 samples x 4 channels of deltas
+ *   201-205  impedance values, 206-207 ASCII messages (not sample data)
+ *
+ * Delta fields are packed MSB first and carry their sign in the least significant bit, which is
+ * how the Ganglion firmware packs them. Each reconstructed sample is the previous sample minus
+ * the delta.
+ *
+ * The decoder keeps no references to the packets it is given and does not allocate, so one
+ * instance per board can be driven straight from the GATT callback. It has no Android
+ * dependencies.
+ */
+public class GanglionDecoder {
+    public static final int NUM_CHANNELS = 4;
+    public static final int MAX_SAMPLES_PER_PACKET = 2;
+    public static final int PACKET_LENGTH = 20;
+    public static final int SAMPLE_RATE_HZ = 200;
+
+    //scale factor from counts to microvolts (MCP3912 with 1.2V reference and x51 gain)
+    public static final double SCALE_FACTOR_UV = 1.2 * 1000000 / (8388607.0 * 1.5 * 51.0);
+
+    public static final int PACKET_TYPE_UNKNOWN = -1;
+    public static final int PACKET_TYPE_RAW = 0;
+    public static final int PACKET_TYPE_18BIT = 1;
+    public static final int PACKET_TYPE_19BIT = 2;
+    public static final int PACKET_TYPE_IMPEDANCE = 3;
+    public static final int PACKET_TYPE_MESSAGE = 4;
+
+    private static final int ID_RAW = 0;
+    private static final int ID_18BIT_FIRST = 1;
+    private static final int ID_18BIT_LAST = 100;
+    private static final int ID_19BIT_FIRST = 101;
+    private static final int ID_19BIT_LAST = 200;
+    private static final int ID_IMPEDANCE_FIRST = 201;
+    private static final int ID_IMPEDANCE_LAST = 205;
+    private static final int ID_MESSAGE_FIRST = 206;
+    private static final int ID_MESSAGE_LAST = 207;
+
+    private final int[] mLastSample = new int[NUM_CHANNELS];
+    private final int[] mDeltas = new int[NUM_CHANNELS * MAX_SAMPLES_PER_PACKET];
+    private boolean mSeeded;
+    private int mLastPacketId = -1;
+    private int mLastPacketType = PACKET_TYPE_UNKNOWN;
+
+    /**
+     * Decodes one packet.
+     *
+     * @param data The packet bytes, as returned by {@code BluetoothGattCharacteristic#getValue()}.
+     * @param length Number of valid bytes in {@code data}.
+     * @param samples Output array of at least {@code NUM_CHANNELS * MAX_SAMPLES_PER_PACKET} ints.
+     *                Samples are written interleaved, i.e. sample s of channel c is at
+     *                {@code s * NUM_CHANNELS + c}.
+     *
+     * @return The number of samples written (0, 1 or 2).
+     */
+    public int decode(byte[] data, int length, int[] samples) {
+        if (data == null || length < 1) {
+            mLastPacketType = PACKET_TYPE_UNKNOWN;
+            return 0;
+        }
+        final int id = data[0] & 0xFF;
+        mLastPacketId = id;
+
+        if (id == ID_RAW) {
+            mLastPacketType = PACKET_TYPE_RAW;
+            if (length < 1 + 3 * NUM_CHANNELS) return 0;
+            for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+                mLastSample[ch] = interpret24bitAsInt32(data, 1 + ch * 3);
+                samples[ch] = mLastSample[ch];
+            }
+            mSeeded = true;
+            return 1;
+        }
+
+        final int bits;
+        if (id >= ID_18BIT_FIRST && id <= ID_18BIT_LAST) {
+            mLastPacketType = PACKET_TYPE_18BIT;
+            bits = 18;
+        } else if (id >= ID_19BIT_FIRST && id <= ID_19BIT_LAST) {
+            mLastPacketType = PACKET_TYPE_19BIT;
+            bits = 19;
+        } else if (id >= ID_IMPEDANCE_FIRST && id <= ID_IMPEDANCE_LAST) {
+            mLastPacketType = PACKET_TYPE_IMPEDANCE;
+            return 0;
+        } else if (id >= ID_MESSAGE_FIRST && id <= ID_MESSAGE_LAST) {
+            mLastPacketType = PACKET_TYPE_MESSAGE;
+            return 0;
+        } else {
+            mLastPacketType = PACKET_TYPE_UNKNOWN;
+            return 0;
+        }
+
+        //8 packed fields must fit in the payload after the ID byte
+        if ((length - 1) * 8 < bits * mDeltas.length) return 0;
+        for (int i = 0; i < mDeltas.length; i++) {
+            mDeltas[i] = readSignLsbField(data, length, i * bits, bits);
+        }
+        for (int s = 0; s < MAX_SAMPLES_PER_PACKET; s++) {
+            for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+                final int idx = s * NUM_CHANNELS + ch;
+                mLastSample[ch] = mLastSample[ch] - mDeltas[idx];
+                samples[idx] = mLastSample[ch];
+            }
+        }
+        return MAX_SAMPLES_PER_PACKET;
+    }
+
+    /**
+     * Forgets the running sample values, e.g. after a reconnect. Compressed packets decoded before
+     * the next raw packet are relative to zero.
+     */
+    public void reset() {
+        for (int ch = 0; ch < NUM_CHANNELS; ch++) mLastSample[ch] = 0;
+        mSeeded = false;
+        mLastPacketId = -1;
+        mLastPacketType = PACKET_TYPE_UNKNOWN;
+    }
+
+    /**
+     * @return True once a raw (ID 0) packet has been seen since the last reset, i.e. decoded
+     *         values are absolute rather than relative to an unknown start.
+     */
+    public boolean isSeeded() {
+        return mSeeded;
+    }
+
+    public int getLastPacketId() {
+        return mLastPacketId;
+    }
+
+    public int getLastPacketType() {
+        return mLastPacketType;
+    }
+
+    /**
+     * Maps a packet ID and the index of a sample within the packet to the sample number used by
+     * the OpenBCI tools (0 for the raw packet, 1-200 for compressed ones).
+     */
+    public static int getSampleNumber(int packetId, int sampleIndex) {
+        if (packetId == ID_RAW) return 0;
+        final int base = packetId > ID_18BIT_LAST ? packetId - ID_18BIT_LAST : packetId;
+        return base * 2 - 1 + sampleIndex;
+    }
+
+    private static int interpret24bitAsInt32(byte[] data, int offset) {
+        //shift into the top of the int and back down to sign extend
+        return (((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)) >> 8;
+    }
+
+    // Reads a field of 'bits' bits starting 'bitOffset' bits after the ID byte. The field's LSB
+    // is its sign: when set, the value is negative and the bits above the field are all ones.
+    private static int readSignLsbField(byte[] data, int length, int bitOffset, int bits) {
+        final int byteIdx = 1 + (bitOffset >> 3);
+        final int shift = bitOffset & 7;
+        //a 19-bit field plus a 7-bit misalignment always fits in 4 bytes
+        int window = 0;
+        for (int i = 0; i < 4; i++) {
+            window <<= 8;
+            if (byteIdx + i < length) window |= data[byteIdx + i] & 0xFF;
+        }
+        final int mask = (1 << bits) - 1;
+        final int value = (window >>> (32 - shift - bits)) & mask;
+        return (value & 0x01) != 0 ? value | ~mask : value;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Serialises GATT operations. Android only allows one outstanding read, write, descriptor write
+ * or MTU request per connection and silently drops anything issued while one is in flight, so
+ * every such operation goes through this queue and the next one is started from the callback
+ * that completes the previous one.
+ *
+ * Each operation gets a timeout and a number of attempts. A queued read or descriptor write is
+ * replaced by a newer one for the same target, since only the last one matters. The queue knows
+ * nothing about {@code BluetoothGatt}: operations supply their own {@code start()} and time is
+ * taken from a {@code Host}, so the scheduling logic can be driven by a fake on a plain JVM.
+ */
+public class GattOperationQueue {
+    public static final int TYPE_READ = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_DESCRIPTOR_WRITE = 2;
+    public static final int TYPE_REQUEST_MTU = 3;
+    public static final int TYPE_CONNECTION_PRIORITY = 4;
+
+    //same value as BluetoothGatt.GATT_SUCCESS; the other statuses are generated by the queue
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_REJECTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    //back-off before retrying an operation the stack refused to start
+    private static final long RETRY_DELAY_MILLIS = 50;
+
+    /**
+     * Supplies the clock and timers, normally backed by a {@code Handler}.
+     */
+    public interface Host {
+        long uptimeMillis();
+
+        void postDelayed(Runnable r, long delayMillis);
+
+        void removeCallbacks(Runnable r);
+    }
+
+    /**
+     * One GATT request. Subclasses issue the request in {@code start()} and are told the outcome
+     * in {@code onComplete(int)}.
+     */
+    public static abstract class Operation {
+        private final int mType;
+        private final Object mTarget;
+        private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private int mAttempts;
+        private long mEnqueuedAt;
+
+        /**
+         * @param type One of the {@code TYPE_} constants.
+         * @param target What the operation acts on, e.g. a characteristic UUID. Used to match
+         *               completions and to coalesce queued operations; may be null.
+         */
+        protected Operation(int type, Object target) {
+            mType = type;
+            mTarget = target;
+        }
+
+        public Operation setTimeout(long timeoutMillis) {
+            mTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public Operation setMaxAttempts(int maxAttempts) {
+            mMaxAttempts = maxAttempts;
+            return this;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public Object getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * Issues the request.
+         *
+         * @return False if the stack refused it, in which case it is retried later.
+         */
+        protected abstract boolean start();
+
+        /**
+         * @return True for requests that have no completion callback (connection priority); the
+         *         queue moves on as soon as {@code start()} succeeds.
+         */
+        protected boolean completesOnStart() {
+            return mType == TYPE_CONNECTION_PRIORITY;
+        }
+
+        /**
+         * Called once with the final outcome: a GATT status or one of the {@code STATUS_}
+         * constants.
+         */
+        protected void onComplete(int status) {
+        }
+    }
+
+    private final Host mHost;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mCurrent;
+
+    private int mMaxDepth;
+    private long mCompleted;
+    private long mFailed;
+    private long mTimeouts;
+    private long mRetries;
+    private long mCoalesced;
+    private long mTotalLatencyMillis;
+    private long mMaxLatencyMillis;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) return;
+                mTimeouts++;
+                retryOrFail(STATUS_TIMEOUT);
+            }
+        }
+    };
+
+    private final Runnable mRestartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent != null) startCurrent();
+            }
+        }
+    };
+
+    public GattOperationQueue(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * Queues an operation, starting it straight away if nothing is in flight.
+     */
+    public synchronized void enqueue(Operation op) {
+        op.mEnqueuedAt = mHost.uptimeMillis();
+        op.mAttempts = 0;
+        if (op.mType == TYPE_READ || op.mType == TYPE_DESCRIPTOR_WRITE) {
+            final Iterator<Operation> it = mPending.iterator();
+            while (it.hasNext()) {
+                final Operation queued = it.next();
+                if (queued.mType == op.mType && queued.mTarget != null
+                        && queued.mTarget.equals(op.mTarget)) {
+                    it.remove();
+                    mCoalesced++;
+                    queued.onComplete(STATUS_CANCELLED);
+                }
+            }
+        }
+        mPending.addLast(op);
+        mMaxDepth = Math.max(mMaxDepth, getDepth());
+        if (mCurrent == null) next();
+    }
+
+    /**
+     * Reports the completion of the operation in flight, from the matching
+     * {@code BluetoothGattCallback} method.
+     *
+     * @param target The target reported by the callback, or null to match any.
+     *
+     * @return False if no operation of that type and target was in flight; the completion is
+     *         then ignored.
+     */
+    public synchronized boolean complete(int type, Object target, int status) {
+        final Operation op = mCurrent;
+        if (op == null || op.mType != type) return false;
+        if (target != null && op.mTarget != null && !op.mTarget.equals(target)) return false;
+        mHost.removeCallbacks(mTimeoutRunnable);
+        if (status == STATUS_SUCCESS) {
+            finish(STATUS_SUCCESS);
+        } else {
+            retryOrFail(status);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels everything, e.g. on disconnect. Pending operations complete with
+     * {@code STATUS_CANCELLED}.
+     */
+    public synchronized void clear() {
+        mHost.removeCallbacks(mTimeoutRunnable);
+        mHost.removeCallbacks(mRestartRunnable);
+        final Operation current = mCurrent;
+        mCurrent = null;
+        if (current != null) current.onComplete(STATUS_CANCELLED);
+        while (!mPending.isEmpty()) mPending.removeFirst().onComplete(STATUS_CANCELLED);
+    }
+
+    /**
+     * @return Number of operations queued, including the one in flight.
+     */
+    public synchronized int getDepth() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetries;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return Mean time from enqueue to successful completion.
+     */
+    public synchronized long getAverageLatencyMillis() {
+        return mCompleted == 0 ? 0 : mTotalLatencyMillis / mCompleted;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+
+    // Takes the next pending operation and starts it.
+    private void next() {
+        mCurrent = mPending.pollFirst();
+        if (mCurrent != null) startCurrent();
+    }
+
+    private void startCurrent() {
+        final Operation op = mCurrent;
+        op.mAttempts++;
+        if (!op.start()) {
+            if (op.mAttempts < op.mMaxAttempts) {
+                mRetries++;
+                mHost.postDelayed(mRestartRunnable, RETRY_DELAY_MILLIS);
+            } else {
+                finish(STATUS_REJECTED);
+            }
+            return;
+        }
+        if (op.completesOnStart()) {
+            finish(STATUS_SUCCESS);
+        } else {
+            mHost.postDelayed(mTimeoutRunnable, op.mTimeoutMillis);
+        }
+    }
+
+    private void retryOrFail(int status) {
+        mHost.removeCallbacks(mTimeoutRunnable);
+        if (mCurrent.mAttempts < mCurrent.mMaxAttempts) {
+            mRetries++;
+            startCurrent();
+        } else {
+            finish(status);
+        }
+    }
+
+    private void finish(int status) {
+        final Operation op = mCurrent;
+        mCurrent = null;
+        if (status == STATUS_SUCCESS) {
+            final long latency = mHost.uptimeMillis() - op.mEnqueuedAt;
+            mCompleted++;
+            mTotalLatencyMillis += latency;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+        } else {
+            mFailed++;
+        }
+        op.onComplete(status);
+        //the callback may have queued more work, and may even have started it
+        if (mCurrent == null) next();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Formats bytes as space separated upper case hex ("0A FF ") using a lookup table instead of
+ * {@code String.format}, writing into a caller-owned {@code char[]}.
+ */
+public class HexFormatter {
+    public static final int CHARS_PER_BYTE = 3;
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    //two hex digits for every byte value, indexed by (b & 0xFF) * 2
+    private static final char[] BYTE_TO_HEX = new char[256 * 2];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            BYTE_TO_HEX[i * 2] = DIGITS[i >>> 4];
+            BYTE_TO_HEX[i * 2 + 1] = DIGITS[i & 0x0F];
+        }
+    }
+
+    private HexFormatter() {
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code data} starting at {@code offset} into {@code out}.
+     * {@code out} needs room for {@code length * CHARS_PER_BYTE} chars.
+     *
+     * @return The number of chars written.
+     */
+    public static int format(byte[] data, int offset, int length, char[] out, int outOffset) {
+        int o = outOffset;
+        for (int i = offset; i < offset + length; i++) {
+            final int idx = (data[i] & 0xFF) << 1;
+            out[o++] = BYTE_TO_HEX[idx];
+            out[o++] = BYTE_TO_HEX[idx + 1];
+            out[o++] = ' ';
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Convenience for low-rate callers that want a {@code String}.
+     */
+    public static String toHexString(byte[] data) {
+        final char[] out = new char[data.length * CHARS_PER_BYTE];
+        return new String(out, 0, format(data, 0, data.length, out, 0));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Turns raw Ganglion/Cyton notification payloads into published sample frames: decoding,
+ * fragment reassembly, packet-loss tracking, optional gap filling and publication to the
+ * {@code SampleRingBuffer}.
+ *
+ * {@code onPacket} and {@code reset} must be called from a single ingest thread. The other
+ * methods may be called from any thread. Has no Android dependencies.
+ */
+public class IngestPipeline {
+    public static final int SOURCE_GANGLION = 0;
+    public static final int SOURCE_CYTON = 1;
+
+    //largest ATT attribute value
+    public static final int MAX_PACKET_LENGTH = 512;
+
+    //packet loss rates are reported over windows of about one second
+    private static final int GANGLION_LOSS_WINDOW = 100;
+    private static final int CYTON_LOSS_WINDOW = 250;
+    //longer gaps are left as discontinuities rather than interpolated
+    private static final int MAX_GAP_FILL_FRAMES = 64;
+
+    private final int mSampleBufferFrames;
+
+    //decoder state and its output, reused for every packet
+    private final GanglionDecoder mGanglionDecoder = new GanglionDecoder();
+    private final int[] mGanglionSamples =
+            new int[GanglionDecoder.NUM_CHANNELS * GanglionDecoder.MAX_SAMPLES_PER_PACKET];
+
+    //Cyton packets arrive split over several notifications and are reassembled here
+    private final CytonPacketParser mCytonParser = new CytonPacketParser(
+            new CytonPacketParser.Listener() {
+                @Override
+                public void onPacket(int sampleNumber, int[] channels, int[] aux, int footer) {
+                    final SampleRingBuffer buffer = mSampleBuffer;
+                    if (buffer == null) return;
+                    final int lost = mCytonSequence.onPacket(sampleNumber);
+                    publishFrames(buffer, channels, 1, lost);
+                }
+
+                @Override
+                public void onFramingError(int discardedBytes) {
+                    //counted by the parser
+                }
+            });
+
+    //decoded samples are handed to in-process consumers through this
+    private volatile SampleRingBuffer mSampleBuffer;
+
+    //the newest raw stream packet, sampled by the debug view at its own rate
+    private final PacketSnapshot mLatestPacket = new PacketSnapshot(MAX_PACKET_LENGTH);
+
+    //packet loss accounting, and the state needed to fill gaps with interpolated frames
+    private final PacketSequenceTracker mGanglionSequence =
+            new PacketSequenceTracker(PacketSequenceTracker.MODE_GANGLION, GANGLION_LOSS_WINDOW);
+    private final PacketSequenceTracker mCytonSequence =
+            new PacketSequenceTracker(PacketSequenceTracker.MODE_CYTON, CYTON_LOSS_WINDOW);
+    private volatile PacketSequenceTracker mActiveSequence;
+    private volatile int mActiveSource = -1;
+    private volatile boolean mGapFillEnabled;
+    private final int[] mLastFrame = new int[CytonPacketParser.NUM_CHANNELS];
+    private SampleRingBuffer mLastFrameBuffer;
+    private final int[] mGapFrames = new int[MAX_GAP_FILL_FRAMES * CytonPacketParser.NUM_CHANNELS];
+
+    /**
+     * @param sampleBufferFrames Number of frames kept for consumers of the sample buffer.
+     */
+    public IngestPipeline(int sampleBufferFrames) {
+        mSampleBufferFrames = sampleBufferFrames;
+    }
+
+    /**
+     * Prepares for samples from the given source, replacing the sample buffer if its channel
+     * count differs.
+     */
+    public void startStream(int source) {
+        final int channels = source == SOURCE_GANGLION
+                ? GanglionDecoder.NUM_CHANNELS : CytonPacketParser.NUM_CHANNELS;
+        final SampleRingBuffer buffer = mSampleBuffer;
+        if (buffer == null || buffer.getChannelCount() != channels) {
+            mSampleBuffer = new SampleRingBuffer(channels, mSampleBufferFrames);
+        }
+        mActiveSequence = source == SOURCE_GANGLION ? mGanglionSequence : mCytonSequence;
+        mActiveSource = source;
+    }
+
+    /**
+     * Processes one notification payload. Ingest thread only.
+     */
+    public void onPacket(int source, byte[] data, int length) {
+        mLatestPacket.update(data, length);
+        if (source == SOURCE_GANGLION) {
+            publishGanglionSamples(data, length);
+        } else if (source == SOURCE_CYTON) {
+            mCytonParser.feed(data, 0, length);
+        }
+    }
+
+    /**
+     * Forgets all decoder, reassembly and sequence state, e.g. on reconnect. Ingest thread only.
+     */
+    public void reset() {
+        mGanglionDecoder.reset();
+        mCytonParser.reset();
+        mGanglionSequence.reset();
+        mCytonSequence.reset();
+        mLastFrameBuffer = null;
+    }
+
+    /**
+     * @return The buffer decoded samples are published to, or null if no stream was started.
+     */
+    public SampleRingBuffer getSampleBuffer() {
+        return mSampleBuffer;
+    }
+
+    /**
+     * @return The source passed to the last {@code startStream}, or -1 if none was started.
+     */
+    public int getActiveSource() {
+        return mActiveSource;
+    }
+
+    public PacketSequenceTracker getPacketSequenceTracker() {
+        return mActiveSequence;
+    }
+
+    public PacketSnapshot getLatestPacket() {
+        return mLatestPacket;
+    }
+
+    public CytonPacketParser getCytonParser() {
+        return mCytonParser;
+    }
+
+    public void setGapFillEnabled(boolean enabled) {
+        mGapFillEnabled = enabled;
+    }
+
+    private void publishGanglionSamples(byte[] data, int length) {
+        final SampleRingBuffer buffer = mSampleBuffer;
+        if (buffer == null) return;
+        final int count = mGanglionDecoder.decode(data, length, mGanglionSamples);
+        if (count == 0) return;
+        final int packetId = mGanglionDecoder.getLastPacketId();
+        final int lost = mGanglionSequence.onPacket(packetId);
+        publishFrames(buffer, mGanglionSamples, count,
+                lost * mGanglionSequence.samplesPerPacket(packetId));
+    }
+
+    // Publishes decoded frames, preceded by interpolated frames covering 'lostFrames' samples
+    // when gap filling is on, so that frame counts stay in step with the board's sample clock.
+    // An unfilled gap is marked on the first frame after it.
+    private void publishFrames(SampleRingBuffer buffer, int[] frames, int count, int lostFrames) {
+        final int channels = buffer.getChannelCount();
+        int first = 0;
+        if (lostFrames > 0 && lostFrames <= MAX_GAP_FILL_FRAMES
+                && mGapFillEnabled && mLastFrameBuffer == buffer) {
+            PacketSequenceTracker.interpolate(mLastFrame, frames, 0, channels, lostFrames,
+                    mGapFrames);
+            buffer.publish(mGapFrames, 0, lostFrames, SampleRingBuffer.FLAG_INTERPOLATED);
+        } else if (lostFrames > 0) {
+            buffer.publish(frames, 0, 1, SampleRingBuffer.FLAG_GAP);
+            first = 1;
+        }
+        buffer.publish(frames, first * channels, count - first);
+        System.arraycopy(frames, (count - 1) * channels, mLastFrame, 0, channels);
+        mLastFrameBuffer = buffer;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Captures raw notification payloads into a {@code RawPacketLog} without making the caller wait
+ * for the disk. {@code append} encodes each record straight into one of a few preallocated
+ * blocks; full blocks are handed to a writer thread and come back empty once written. If the
+ * disk falls so far behind that no empty block is left, records are dropped and counted rather
+ * than stalling the caller.
+ *
+ * {@code append} and {@code finish} must be called from one thread, normally the ingest thread.
+ */
+public class PacketCapture {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOCK_COUNT = 8;
+
+    private static class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        int length;
+    }
+
+    //queued after the last block to make the writer close the file
+    private final Block mEndOfCapture = new Block();
+
+    private final File mFile;
+    private final FileOutputStream mOut;
+    private final BlockingQueue<Block> mEmpty = new ArrayBlockingQueue<Block>(BLOCK_COUNT);
+    private final BlockingQueue<Block> mFull = new ArrayBlockingQueue<Block>(BLOCK_COUNT + 1);
+    private final Thread mThread;
+
+    private Block mCurrent;
+    private long mLastNanos;
+    private boolean mFinished;
+
+    private volatile long mPackets;
+    private volatile long mDroppedPackets;
+    private volatile long mBytesWritten;
+    private volatile IOException mError;
+
+    /**
+     * Creates (or overwrites) the file, writes the log header and starts the writer thread.
+     *
+     * @param uuids The characteristics records refer to, by index.
+     * @param startNanos Monotonic time the record timestamps are relative to.
+     */
+    public PacketCapture(File file, UUID[] uuids, long startTimeMillis, long startNanos)
+            throws IOException {
+        mFile = file;
+        mOut = new FileOutputStream(file);
+        final byte[] header = RawPacketLog.encodeHeader(uuids, startTimeMillis, startNanos);
+        try {
+            mOut.write(header);
+        } catch (IOException e) {
+            mOut.close();
+            throw e;
+        }
+        mBytesWritten = header.length;
+        mLastNanos = startNanos;
+        for (int i = 0; i < BLOCK_COUNT; i++) mEmpty.add(new Block());
+        mCurrent = mEmpty.poll();
+        mThread = new Thread(mWriter, "OpenBCIBLE-capture");
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mThread.start();
+    }
+
+    /**
+     * Appends a payload. Never blocks.
+     *
+     * @param uuidIndex Index into the UUIDs given to the constructor.
+     */
+    public void append(int uuidIndex, long timestampNanos, byte[] data, int length) {
+        if (mFinished) return;
+        length = Math.min(length, IngestPipeline.MAX_PACKET_LENGTH);
+        if (mCurrent != null
+                && mCurrent.length + RawPacketLog.MAX_RECORD_OVERHEAD + length > BLOCK_SIZE) {
+            mFull.offer(mCurrent);
+            mCurrent = null;
+        }
+        if (mCurrent == null) {
+            mCurrent = mEmpty.poll();
+            if (mCurrent == null) {
+                mDroppedPackets++;
+                return;
+            }
+            mCurrent.length = 0;
+        }
+        mCurrent.length = RawPacketLog.encodeRecord(mCurrent.data, mCurrent.length, uuidIndex,
+                Math.max(0, timestampNanos - mLastNanos), data, 0, length);
+        mLastNanos = Math.max(mLastNanos, timestampNanos);
+        mPackets++;
+    }
+
+    /**
+     * Hands over what is buffered and lets the writer thread close the file. Never blocks; no
+     * more payloads are accepted afterwards.
+     */
+    public void finish() {
+        if (mFinished) return;
+        mFinished = true;
+        if (mCurrent != null && mCurrent.length > 0) mFull.offer(mCurrent);
+        mCurrent = null;
+        mFull.offer(mEndOfCapture);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    /**
+     * @return Payloads dropped because the writer thread fell behind.
+     */
+    public long getDroppedPackets() {
+        return mDroppedPackets;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return The error that stopped the writer, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Block block = mFull.take();
+                    if (block == mEndOfCapture) break;
+                    if (mError == null) {
+                        try {
+                            mOut.write(block.data, 0, block.length);
+                            mBytesWritten += block.length;
+                        } catch (IOException e) {
+                            //keep recycling blocks so the producer only drops, never stalls
+                            mError = e;
+                        }
+                    }
+                    block.length = 0;
+                    mEmpty.offer(block);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    if (mError == null) mError = e;
+                }
+            }
+        }
+    };
+}
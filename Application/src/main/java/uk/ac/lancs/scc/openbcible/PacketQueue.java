@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands raw notification payloads from the GATT callback thread to the processing thread. The
+ * slots and their byte buffers are allocated up front and reused, so the producer only copies
+ * bytes. One producer and one consumer; neither ever blocks. When the consumer falls so far
+ * behind that every slot is full, new packets are dropped and counted.
+ */
+public class PacketQueue {
+    /**
+     * Receives drained packets. {@code data} is only valid during the call.
+     */
+    public interface Consumer {
+        void onPacket(int source, byte[] data, int length, long timestampNanos);
+    }
+
+    private final int mMask;
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final int[] mSources;
+    private final long[] mTimestamps;
+
+    private final AtomicLong mHead = new AtomicLong();   //next slot to fill
+    private final AtomicLong mTail = new AtomicLong();   //next slot to drain
+    private volatile long mDroppedPackets;
+
+    /**
+     * @param minCapacity Minimum number of packets held, rounded up to a power of two.
+     * @param maxPacketLength Size of each slot; longer packets are truncated.
+     */
+    public PacketQueue(int minCapacity, int maxPacketLength) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 1));
+        if (capacity < minCapacity) capacity <<= 1;
+        mMask = capacity - 1;
+        mData = new byte[capacity][maxPacketLength];
+        mLengths = new int[capacity];
+        mSources = new int[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Copies a packet into the next free slot. Producer thread only.
+     *
+     * @return False if the queue was full and the packet was dropped.
+     */
+    public boolean offer(int source, byte[] data, int length, long timestampNanos) {
+        final long head = mHead.get();
+        if (head - mTail.get() > mMask) {
+            mDroppedPackets++;
+            return false;
+        }
+        final int slot = (int) (head & mMask);
+        final int copied = Math.min(length, mData[slot].length);
+        System.arraycopy(data, 0, mData[slot], 0, copied);
+        mLengths[slot] = copied;
+        mSources[slot] = source;
+        mTimestamps[slot] = timestampNanos;
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * Passes every queued packet to {@code consumer} in arrival order. Consumer thread only.
+     *
+     * @return The number of packets drained.
+     */
+    public int drain(Consumer consumer) {
+        long tail = mTail.get();
+        final long head = mHead.get();
+        final int count = (int) (head - tail);
+        while (tail < head) {
+            final int slot = (int) (tail & mMask);
+            consumer.onPacket(mSources[slot], mData[slot], mLengths[slot], mTimestamps[slot]);
+            tail++;
+            //release the slot straight away so the producer can reuse it
+            mTail.lazySet(tail);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    public long getDroppedPackets() {
+        return mDroppedPackets;
+    }
+}
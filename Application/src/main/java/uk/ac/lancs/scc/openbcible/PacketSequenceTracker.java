@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Detects lost packets from the packet counters the boards send and keeps loss statistics.
+ *
+ * Ganglion packet IDs run 1-100 (18-bit compression) or 101-200 (19-bit compression) and wrap
+ * within their range, with ID 0 sent for an uncompressed packet that restarts the sequence. Each
+ * compressed packet carries two samples. The Cyton sample number is a plain 0-255 counter with
+ * one sample per packet.
+ *
+ * Counters are cumulative since the last {@code reset()}; the windowed rate is the loss over the
+ * last complete window of {@code windowPackets} expected packets. The tracker is updated from the
+ * ingest thread and its getters may be read from any thread.
+ */
+public class PacketSequenceTracker {
+    public static final int MODE_GANGLION = 0;
+    public static final int MODE_CYTON = 1;
+
+    private static final int GANGLION_ID_RAW = 0;
+    private static final int GANGLION_RANGE = 100;
+    private static final int CYTON_RANGE = 256;
+
+    private final int mMode;
+    private final int mWindowPackets;
+
+    //-1 until the first packet, afterwards the ID expected next
+    private int mExpectedId = -1;
+
+    private volatile long mReceivedPackets;
+    private volatile long mLostPackets;
+    private volatile long mGaps;
+    private long mWindowExpected;
+    private long mWindowLost;
+    private volatile float mWindowLossRate;
+
+    /**
+     * @param mode {@code MODE_GANGLION} or {@code MODE_CYTON}.
+     * @param windowPackets Number of expected packets per loss-rate window.
+     */
+    public PacketSequenceTracker(int mode, int windowPackets) {
+        if (mode != MODE_GANGLION && mode != MODE_CYTON) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        if (windowPackets < 1) {
+            throw new IllegalArgumentException("windowPackets must be positive");
+        }
+        mMode = mode;
+        mWindowPackets = windowPackets;
+    }
+
+    /**
+     * Records a received packet.
+     *
+     * @param id The Ganglion packet ID (first byte) or the Cyton sample number.
+     *
+     * @return The number of packets lost immediately before this one.
+     */
+    public int onPacket(int id) {
+        int lost = 0;
+        if (mExpectedId >= 0) lost = countMissing(id);
+        mExpectedId = nextId(id);
+
+        mReceivedPackets++;
+        if (lost > 0) {
+            mLostPackets += lost;
+            mGaps++;
+        }
+        mWindowExpected += 1 + lost;
+        mWindowLost += lost;
+        if (mWindowExpected >= mWindowPackets) {
+            mWindowLossRate = (float) mWindowLost / mWindowExpected;
+            mWindowExpected = 0;
+            mWindowLost = 0;
+        }
+        return lost;
+    }
+
+    /**
+     * @return Number of samples each packet with the given ID carries.
+     */
+    public int samplesPerPacket(int id) {
+        if (mMode == MODE_GANGLION) {
+            return id == GANGLION_ID_RAW ? 1 : GanglionDecoder.MAX_SAMPLES_PER_PACKET;
+        }
+        return 1;
+    }
+
+    /**
+     * Forgets the sequence position and all counters, e.g. on reconnect.
+     */
+    public void reset() {
+        mExpectedId = -1;
+        mReceivedPackets = 0;
+        mLostPackets = 0;
+        mGaps = 0;
+        mWindowExpected = 0;
+        mWindowLost = 0;
+        mWindowLossRate = 0;
+    }
+
+    public long getReceivedPackets() {
+        return mReceivedPackets;
+    }
+
+    public long getLostPackets() {
+        return mLostPackets;
+    }
+
+    /**
+     * @return Number of separate runs of lost packets.
+     */
+    public long getGaps() {
+        return mGaps;
+    }
+
+    /**
+     * @return Fraction of expected packets lost since the last reset.
+     */
+    public float getLossRate() {
+        final long lost = mLostPackets;
+        final long expected = mReceivedPackets + lost;
+        return expected == 0 ? 0 : (float) lost / expected;
+    }
+
+    /**
+     * @return Fraction of expected packets lost in the last complete window.
+     */
+    public float getWindowLossRate() {
+        return mWindowLossRate;
+    }
+
+    /**
+     * Writes {@code missing} frames linearly interpolated between {@code from} and {@code to}
+     * (exclusive of both) into {@code out}, interleaved.
+     *
+     * @param from The last frame received before the gap.
+     * @param to Array holding the first frame received after the gap.
+     * @param toOffset Index of that frame in {@code to}.
+     */
+    public static void interpolate(int[] from, int[] to, int toOffset, int channels,
+                                   int missing, int[] out) {
+        for (int k = 1; k <= missing; k++) {
+            for (int ch = 0; ch < channels; ch++) {
+                final long step = (long) (to[toOffset + ch] - from[ch]) * k / (missing + 1);
+                out[(k - 1) * channels + ch] = from[ch] + (int) step;
+            }
+        }
+    }
+
+    private int countMissing(int id) {
+        if (mMode == MODE_CYTON) {
+            return (id - mExpectedId) & (CYTON_RANGE - 1);
+        }
+        //a raw packet restarts the sequence, and after one either range may follow; a switch
+        //between compression ranges is a mode change rather than loss
+        if (id == GANGLION_ID_RAW || mExpectedId == GANGLION_ID_RAW) return 0;
+        if (ganglionRange(id) != ganglionRange(mExpectedId)) return 0;
+        final int missing = (id - mExpectedId) % GANGLION_RANGE;
+        return missing < 0 ? missing + GANGLION_RANGE : missing;
+    }
+
+    private int nextId(int id) {
+        if (mMode == MODE_CYTON) return (id + 1) & (CYTON_RANGE - 1);
+        if (id == GANGLION_ID_RAW) return GANGLION_ID_RAW;
+        //1..100 -> 1, 101..200 -> 101
+        final int first = ganglionRange(id) * GANGLION_RANGE + 1;
+        return first + (id - first + 1) % GANGLION_RANGE;
+    }
+
+    private static int ganglionRange(int id) {
+        return (id - 1) / GANGLION_RANGE;
+    }
+}
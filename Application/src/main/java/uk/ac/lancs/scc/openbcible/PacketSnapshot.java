@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Holds a copy of the most recent packet so a slow reader (e.g. a debug view redrawn once per
+ * display frame) can sample it without seeing every packet. Older packets are simply overwritten.
+ */
+public class PacketSnapshot {
+    private final byte[] mData;
+    private int mLength;
+    private volatile long mSequence;
+
+    public PacketSnapshot(int maxLength) {
+        mData = new byte[maxLength];
+    }
+
+    /**
+     * Replaces the held packet. Bytes beyond the capacity are dropped.
+     */
+    public void update(byte[] data, int length) {
+        synchronized (mData) {
+            mLength = Math.min(length, mData.length);
+            System.arraycopy(data, 0, mData, 0, mLength);
+            mSequence++;
+        }
+    }
+
+    /**
+     * @return A counter that changes every time the packet is replaced, so readers can skip
+     *         copying when nothing new has arrived.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Copies the held packet into {@code dst}, which should be at least the capacity long.
+     *
+     * @return The number of bytes copied.
+     */
+    public int copyTo(byte[] dst) {
+        synchronized (mData) {
+            System.arraycopy(mData, 0, dst, 0, mLength);
+            return mLength;
+        }
+    }
+
+    public int getCapacity() {
+        return mData.length;
+    }
+}
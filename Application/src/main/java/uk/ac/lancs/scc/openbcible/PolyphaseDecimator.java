@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the sample rate of a stream by an integer factor, e.g. for display or for consumers
+ * that send samples over the network, after removing everything above the new Nyquist frequency
+ * with a linear-phase FIR low-pass.
+ *
+ * The filter is a Kaiser-windowed sinc that passes {@code PASSBAND} of the output band and is
+ * down {@code STOPBAND_DB} from the output Nyquist frequency up, so nothing folds back into the
+ * output band less attenuated than that. Its length follows from the transition width, about 51
+ * taps per phase whatever the factor. Only every {@code factor}-th output is computed: the
+ * equivalent of running its {@code factor} polyphase sub-filters at the output rate, costing one
+ * phase's taps in multiplies per input sample. Decimators can be chained, the output of one
+ * feeding the next.
+ *
+ * Works on float blocks of interleaved frames, optionally on a range of channels so different
+ * channels may be decimated on different threads. Output may overwrite the input; nothing is
+ * allocated after construction.
+ */
+public class PolyphaseDecimator {
+    //fraction of the output band, up to its Nyquist frequency, passed unchanged
+    public static final double PASSBAND = 0.8;
+    //attenuation at and above the output Nyquist frequency
+    public static final double STOPBAND_DB = 80;
+
+    //Kaiser's formulas for the window shape and length giving STOPBAND_DB
+    private static final double KAISER_BETA = 0.1102 * (STOPBAND_DB - 8.7);
+
+    private final int mChannels;
+    private final int mFactor;
+    private final int mTaps;
+    //symmetric, so the same read forwards or backwards
+    private final float[] mCoeffs;
+    //the newest mTaps samples of each channel, stored twice so a window never wraps
+    private final float[] mHistory;
+    private final PolyphaseDecimator mNext;
+    private int mPosition;
+    private int mPhase;
+
+    /**
+     * @param factor Ratio of input to output sample rate, at least 2.
+     * @param next Decimator the output is passed on to, or null.
+     */
+    public PolyphaseDecimator(int channels, int factor, PolyphaseDecimator next) {
+        if (factor < 2) throw new IllegalArgumentException("unsupported factor " + factor);
+        if (next != null && next.mChannels != channels) {
+            throw new IllegalArgumentException("channel count mismatch");
+        }
+        mChannels = channels;
+        mFactor = factor;
+        //transition from the passband edge to the output Nyquist, as a fraction of the input rate
+        final double transition = (1 - PASSBAND) * 0.5 / factor;
+        final int taps = (int) Math.ceil((STOPBAND_DB - 7.95) / (14.36 * transition)) + 1;
+        mTaps = (taps + factor - 1) / factor * factor;
+        mCoeffs = design(mTaps, (1 + PASSBAND) * 0.25 / factor);
+        mHistory = new float[channels * mTaps * 2];
+        mNext = next;
+    }
+
+    /**
+     * Builds a chain of decimators, the first applying {@code factors[0]}.
+     *
+     * @return The first decimator, or null if {@code factors} is empty.
+     */
+    public static PolyphaseDecimator chain(int channels, int[] factors) {
+        PolyphaseDecimator next = null;
+        for (int i = factors.length - 1; i >= 0; i--) {
+            next = new PolyphaseDecimator(channels, factors[i], next);
+        }
+        return next;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getFactor() {
+        return mFactor;
+    }
+
+    /**
+     * @return The factor of the whole chain starting here.
+     */
+    public int getTotalFactor() {
+        return mNext == null ? mFactor : mFactor * mNext.getTotalFactor();
+    }
+
+    /**
+     * @return The filter length of this decimator.
+     */
+    public int getTapCount() {
+        return mTaps;
+    }
+
+    /**
+     * @return The delay of the whole chain starting here, in input frames.
+     */
+    public float getDelay() {
+        final float delay = (mTaps - 1) / 2f;
+        return mNext == null ? delay : delay + mFactor * mNext.getDelay();
+    }
+
+    public PolyphaseDecimator getNext() {
+        return mNext;
+    }
+
+    /**
+     * Forgets the history of every decimator in the chain, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        Arrays.fill(mHistory, 0);
+        mPosition = 0;
+        mPhase = 0;
+        if (mNext != null) mNext.reset();
+    }
+
+    /**
+     * Decimates interleaved frames of {@code getChannelCount()} channels in place.
+     *
+     * @return The number of frames written from {@code offset}.
+     */
+    public int process(float[] frames, int offset, int count) {
+        return process(frames, offset, count, mChannels, 0, frames, offset);
+    }
+
+    /**
+     * Decimates {@code getChannelCount()} channels, starting at {@code firstChannel}, of frames
+     * {@code stride} floats apart. The output is written with the same layout to {@code dst},
+     * which may be {@code src}, leaving the other channels alone.
+     *
+     * @return The number of frames written from {@code dstOffset}.
+     */
+    public int process(float[] src, int srcOffset, int count, int stride, int firstChannel,
+                       float[] dst, int dstOffset) {
+        final int taps = mTaps;
+        int out = 0;
+        for (int f = 0; f < count; f++) {
+            final int position = mPosition;
+            final int i = (srcOffset + f) * stride + firstChannel;
+            for (int c = 0, h = position; c < mChannels; c++, h += taps * 2) {
+                final float value = src[i + c];
+                mHistory[h] = value;
+                mHistory[h + taps] = value;
+            }
+            mPosition = position + 1 == taps ? 0 : position + 1;
+            if (++mPhase < mFactor) continue;
+            mPhase = 0;
+            //the window of the newest mTaps samples starts just after the one written last
+            final int o = (dstOffset + out) * stride + firstChannel;
+            for (int c = 0, h = mPosition; c < mChannels; c++, h += taps * 2) {
+                float sum = 0;
+                for (int k = 0; k < taps; k++) sum += mCoeffs[k] * mHistory[h + k];
+                dst[o + c] = sum;
+            }
+            out++;
+        }
+        if (mNext != null) {
+            out = mNext.process(dst, dstOffset, out, stride, firstChannel, dst, dstOffset);
+        }
+        return out;
+    }
+
+    // Kaiser-windowed sinc low-pass with unity gain at DC; cutoff is a fraction of the input
+    // sample rate.
+    private static float[] design(int taps, double cutoff) {
+        final double[] h = new double[taps];
+        final double centre = (taps - 1) / 2.0;
+        final double i0Beta = besselI0(KAISER_BETA);
+        double sum = 0;
+        for (int k = 0; k < taps; k++) {
+            final double t = k - centre;
+            final double sinc = t == 0 ? 2 * cutoff
+                    : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            final double r = t / centre;
+            h[k] = sinc * besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / i0Beta;
+            sum += h[k];
+        }
+        final float[] coeffs = new float[taps];
+        for (int k = 0; k < taps; k++) coeffs[k] = (float) (h[k] / sum);
+        return coeffs;
+    }
+
+    // Modified Bessel function of the first kind, order 0, by its power series.
+    private static double besselI0(double x) {
+        double term = 1;
+        double sum = 1;
+        for (int k = 1; term > sum * 1e-12; k++) {
+            final double q = x / (2 * k);
+            term *= q * q;
+            sum += term;
+        }
+        return sum;
+    }
+}
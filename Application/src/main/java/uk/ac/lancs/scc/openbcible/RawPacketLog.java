@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * A log of raw GATT notification payloads as they arrived, before any decoding, so sessions can
+ * be decoded again later or replayed through the pipeline.
+ *
+ * Layout, little-endian:
+ *   header   magic "OBRL", version, start time (ms since the epoch), start time (monotonic ns),
+ *            UUID count, then each characteristic UUID as two longs
+ *   records  UUID index (1 byte), arrival time minus the previous one's (or the start time's)
+ *            in ns as an unsigned LEB128 varint, payload length as a varint, payload bytes
+ *
+ * A record is a few bytes longer than its payload. A log cut short by a crash reads up to its
+ * last complete record.
+ */
+public class RawPacketLog {
+    public static final String FILE_EXTENSION = ".obrl";
+    public static final int MAGIC = 0x4C52424F;
+    public static final int VERSION = 1;
+    public static final int MAX_UUIDS = 255;
+    //longest record header: index, 64-bit varint, 32-bit varint
+    public static final int MAX_RECORD_OVERHEAD = 1 + 10 + 5;
+
+    /**
+     * @return The {@code IngestPipeline.SOURCE_} the payloads of a characteristic are decoded
+     *         as, or -1 if it is not a sample stream.
+     */
+    public static int sourceForUuid(UUID uuid) {
+        final String s = uuid.toString();
+        if (SampleGattAttributes.UUID_GANGLION_RECEIVE.equals(s)) {
+            return IngestPipeline.SOURCE_GANGLION;
+        }
+        if (SampleGattAttributes.UUID_CYTON_RECEIVE.equals(s)) {
+            return IngestPipeline.SOURCE_CYTON;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The header of a log that refers to the given characteristics.
+     */
+    public static byte[] encodeHeader(UUID[] uuids, long startTimeMillis, long startNanos) {
+        if (uuids.length > MAX_UUIDS) throw new IllegalArgumentException("too many UUIDs");
+        final ByteBuffer header = ByteBuffer.allocate(28 + 16 * uuids.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startTimeMillis).putLong(startNanos);
+        header.putInt(uuids.length);
+        for (UUID uuid : uuids) {
+            header.putLong(uuid.getMostSignificantBits());
+            header.putLong(uuid.getLeastSignificantBits());
+        }
+        return header.array();
+    }
+
+    /**
+     * Encodes one record into {@code dst}, which needs {@code MAX_RECORD_OVERHEAD + length}
+     * bytes free at {@code pos}.
+     *
+     * @param deltaNanos Arrival time minus the previous record's; never negative.
+     *
+     * @return The position just past the record.
+     */
+    public static int encodeRecord(byte[] dst, int pos, int uuidIndex, long deltaNanos,
+                                   byte[] data, int offset, int length) {
+        dst[pos++] = (byte) uuidIndex;
+        pos = putVarint(dst, pos, deltaNanos);
+        pos = putVarint(dst, pos, length);
+        System.arraycopy(data, offset, dst, pos, length);
+        return pos + length;
+    }
+
+    private static int putVarint(byte[] dst, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Appends records to a new log through a large buffer. Single-threaded.
+     */
+    public static class Writer implements Closeable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final OutputStream mOut;
+        private final byte[] mRecord =
+                new byte[MAX_RECORD_OVERHEAD + IngestPipeline.MAX_PACKET_LENGTH];
+        private long mLastNanos;
+        private long mRecords;
+        private long mBytes;
+
+        /**
+         * Creates (or overwrites) the file and writes the header.
+         *
+         * @param uuids The characteristics records may refer to, by index.
+         */
+        public Writer(File file, UUID[] uuids, long startTimeMillis, long startNanos)
+                throws IOException {
+            final byte[] header = encodeHeader(uuids, startTimeMillis, startNanos);
+            mOut = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            mOut.write(header);
+            mLastNanos = startNanos;
+            mBytes = header.length;
+        }
+
+        /**
+         * Appends one payload.
+         *
+         * @param uuidIndex Index into the UUIDs given to the constructor.
+         * @param timestampNanos Arrival time on the monotonic clock the start time was taken on.
+         */
+        public void append(int uuidIndex, long timestampNanos, byte[] data, int offset,
+                           int length) throws IOException {
+            length = Math.min(length, IngestPipeline.MAX_PACKET_LENGTH);
+            //arrival order matches the clock, but never write a negative delta
+            final int n = encodeRecord(mRecord, 0, uuidIndex,
+                    Math.max(0, timestampNanos - mLastNanos), data, offset, length);
+            mOut.write(mRecord, 0, n);
+            mLastNanos = Math.max(mLastNanos, timestampNanos);
+            mRecords++;
+            mBytes += n;
+        }
+
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        public long getRecordCount() {
+            return mRecords;
+        }
+
+        public long getByteCount() {
+            return mBytes;
+        }
+    }
+
+    /**
+     * Reads a log record by record through a read-only mapping. The payload array is reused, so
+     * its contents are only valid until the next call to {@code next()}.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile mFile;
+        private final MappedByteBuffer mMap;
+        private final long mStartTimeMillis;
+        private final long mStartNanos;
+        private final UUID[] mUuids;
+        private final int[] mSources;
+        private final int mDataStart;
+
+        private final byte[] mData = new byte[IngestPipeline.MAX_PACKET_LENGTH];
+        private int mLength;
+        private int mUuidIndex;
+        private long mTimestampNanos;
+
+        public Reader(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = mFile.getChannel();
+                mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mMap.order(ByteOrder.LITTLE_ENDIAN);
+                if (mMap.remaining() < 28 || mMap.getInt() != MAGIC) {
+                    throw new IOException("not a raw packet log");
+                }
+                final int version = mMap.getInt();
+                if (version != VERSION) {
+                    throw new IOException("unsupported raw packet log version " + version);
+                }
+                mStartTimeMillis = mMap.getLong();
+                mStartNanos = mMap.getLong();
+                final int count = mMap.getInt();
+                if (count < 0 || count > MAX_UUIDS || mMap.remaining() < count * 16) {
+                    throw new IOException("bad UUID table");
+                }
+                mUuids = new UUID[count];
+                mSources = new int[count];
+                for (int i = 0; i < count; i++) {
+                    mUuids[i] = new UUID(mMap.getLong(), mMap.getLong());
+                    mSources[i] = sourceForUuid(mUuids[i]);
+                }
+                mDataStart = mMap.position();
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+            rewind();
+        }
+
+        /**
+         * Goes back to the first record.
+         */
+        public void rewind() {
+            mMap.position(mDataStart);
+            mTimestampNanos = mStartNanos;
+        }
+
+        /**
+         * Advances to the next record.
+         *
+         * @return False at the end of the log, or at a record cut short.
+         */
+        public boolean next() {
+            final int start = mMap.position();
+            if (!mMap.hasRemaining()) return false;
+            final int index = mMap.get() & 0xFF;
+            final long delta = getVarint();
+            final long length = getVarint();
+            if (delta < 0 || length < 0 || length > mMap.remaining() || index >= mUuids.length) {
+                mMap.position(start);
+                return false;
+            }
+            mUuidIndex = index;
+            mTimestampNanos += delta;
+            //payloads longer than any notification are truncated, like the packet queue does
+            mLength = (int) Math.min(length, mData.length);
+            mMap.get(mData, 0, mLength);
+            mMap.position(mMap.position() + (int) length - mLength);
+            return true;
+        }
+
+        public int getUuidIndex() {
+            return mUuidIndex;
+        }
+
+        public UUID getUuid() {
+            return mUuids[mUuidIndex];
+        }
+
+        /**
+         * @return The {@code IngestPipeline.SOURCE_} of the current record, or -1.
+         */
+        public int getSource() {
+            return mSources[mUuidIndex];
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public long getStartTimeMillis() {
+            return mStartTimeMillis;
+        }
+
+        public long getStartNanos() {
+            return mStartNanos;
+        }
+
+        public UUID[] getUuids() {
+            return mUuids.clone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+
+        // Reads an unsigned LEB128 value, or returns -1 if it runs past the end of the file.
+        private long getVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!mMap.hasRemaining()) return -1;
+                final int b = mMap.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            return -1;
+        }
+    }
+}
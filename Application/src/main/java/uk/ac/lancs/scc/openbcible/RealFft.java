@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * Forward FFT of real input of a fixed power-of-two length. The plan (bit-reversal table and
+ * twiddle factors) and the scratch buffers are built once, so transforms allocate nothing. The
+ * input is packed into a complex sequence of half the length, transformed with an iterative
+ * radix-2 FFT and split into the spectrum of the real sequence.
+ *
+ * Not thread-safe: each thread needs its own plan.
+ */
+public class RealFft {
+    private final int mSize;
+    private final int mHalf;
+    private final int[] mBitReverse;
+    //e^(-2 pi i j / half) for the complex FFT, and e^(-2 pi i k / size) for the split
+    private final double[] mCos;
+    private final double[] mSin;
+    private final double[] mSplitCos;
+    private final double[] mSplitSin;
+    private final double[] mRe;
+    private final double[] mIm;
+
+    /**
+     * @param size Transform length, a power of two of at least 4.
+     */
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two >= 4: " + size);
+        }
+        mSize = size;
+        mHalf = size / 2;
+        final int bits = Integer.numberOfTrailingZeros(mHalf);
+        mBitReverse = new int[mHalf];
+        for (int i = 0; i < mHalf; i++) {
+            mBitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        mCos = new double[Math.max(1, mHalf / 2)];
+        mSin = new double[mCos.length];
+        for (int j = 0; j < mHalf / 2; j++) {
+            mCos[j] = Math.cos(2 * Math.PI * j / mHalf);
+            mSin[j] = -Math.sin(2 * Math.PI * j / mHalf);
+        }
+        mSplitCos = new double[mHalf];
+        mSplitSin = new double[mHalf];
+        for (int k = 0; k < mHalf; k++) {
+            mSplitCos[k] = Math.cos(2 * Math.PI * k / size);
+            mSplitSin[k] = -Math.sin(2 * Math.PI * k / size);
+        }
+        mRe = new double[mHalf];
+        mIm = new double[mHalf];
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of bins produced, {@code size / 2 + 1}: DC to Nyquist.
+     */
+    public int getBinCount() {
+        return mHalf + 1;
+    }
+
+    /**
+     * Transforms {@code getSize()} samples of {@code input}.
+     *
+     * @param re Receives the real parts of bins 0 to {@code size / 2}.
+     * @param im Receives the imaginary parts.
+     */
+    public void forward(double[] input, double[] re, double[] im) {
+        //even samples as real parts, odd samples as imaginary parts, in bit-reversed order
+        for (int i = 0; i < mHalf; i++) {
+            final int j = mBitReverse[i];
+            mRe[j] = input[2 * i];
+            mIm[j] = input[2 * i + 1];
+        }
+        transform();
+
+        re[0] = mRe[0] + mIm[0];
+        im[0] = 0;
+        re[mHalf] = mRe[0] - mIm[0];
+        im[mHalf] = 0;
+        for (int k = 1; k < mHalf; k++) {
+            final int m = mHalf - k;
+            //spectra of the even and odd samples
+            final double evenRe = (mRe[k] + mRe[m]) / 2;
+            final double evenIm = (mIm[k] - mIm[m]) / 2;
+            final double oddRe = (mIm[k] + mIm[m]) / 2;
+            final double oddIm = -(mRe[k] - mRe[m]) / 2;
+            final double wr = mSplitCos[k];
+            final double wi = mSplitSin[k];
+            re[k] = evenRe + wr * oddRe - wi * oddIm;
+            im[k] = evenIm + wr * oddIm + wi * oddRe;
+        }
+    }
+
+    // In-place iterative radix-2 FFT of mRe/mIm, already in bit-reversed order.
+    private void transform() {
+        for (int length = 2; length <= mHalf; length <<= 1) {
+            final int half = length >> 1;
+            final int step = mHalf / length;
+            for (int start = 0; start < mHalf; start += length) {
+                for (int j = 0; j < half; j++) {
+                    final double wr = mCos[j * step];
+                    final double wi = mSin[j * step];
+                    final int a = start + j;
+                    final int b = a + half;
+                    final double tr = mRe[b] * wr - mIm[b] * wi;
+                    final double ti = mRe[b] * wi + mIm[b] * wr;
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the payloads of a {@code RawPacketLog} into an {@code IngestPipeline}, standing in for
+ * the GATT callback. Payloads are delivered with their original spacing, N times faster, or as
+ * fast as the pipeline takes them ({@code SPEED_UNLIMITED}). The thread that runs the transport
+ * is the pipeline's ingest thread.
+ *
+ * Has no Android dependencies, so it also runs on a desktop JVM ({@code ReplayBenchmark} in the
+ * test sources).
+ */
+public class ReplayTransport implements Runnable {
+    public static final float SPEED_UNLIMITED = 0;
+
+    private final RawPacketLog.Reader mReader;
+    private final IngestPipeline mPipeline;
+    private final float mSpeed;
+    private volatile boolean mStopped;
+
+    private volatile long mPackets;
+    private volatile long mBytes;
+    private volatile long mElapsedNanos;
+    private volatile long mLogNanos;
+    private volatile long mMaxLateNanos;
+
+    /**
+     * @param speed 1 for real time, N for N times faster, or {@code SPEED_UNLIMITED}.
+     */
+    public ReplayTransport(RawPacketLog.Reader reader, IngestPipeline pipeline, float speed) {
+        mReader = reader;
+        mPipeline = pipeline;
+        mSpeed = speed;
+    }
+
+    /**
+     * Replays the whole log from the start, returning when it is done or {@code stop()} is
+     * called.
+     */
+    @Override
+    public void run() {
+        mPipeline.reset();
+        mReader.rewind();
+        mPackets = 0;
+        mBytes = 0;
+        mMaxLateNanos = 0;
+        int activeSource = -1;
+        long firstTimestamp = -1;
+        final long start = System.nanoTime();
+        while (!mStopped && mReader.next()) {
+            final int source = mReader.getSource();
+            if (source < 0) continue;
+            if (source != activeSource) {
+                mPipeline.startStream(source);
+                activeSource = source;
+            }
+            final long timestamp = mReader.getTimestampNanos();
+            if (firstTimestamp < 0) firstTimestamp = timestamp;
+            mLogNanos = timestamp - firstTimestamp;
+            if (mSpeed > 0) waitUntil(start + (long) (mLogNanos / (double) mSpeed));
+            mPipeline.onPacket(source, mReader.getData(), mReader.getLength());
+            mPackets++;
+            mBytes += mReader.getLength();
+        }
+        mElapsedNanos = System.nanoTime() - start;
+    }
+
+    public void stop() {
+        mStopped = true;
+    }
+
+    public long getPacketCount() {
+        return mPackets;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return Wall time the last replay took.
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * @return Time between the first and the last replayed payload, as recorded.
+     */
+    public long getLogNanos() {
+        return mLogNanos;
+    }
+
+    /**
+     * @return How far delivery fell behind schedule at worst, when paced.
+     */
+    public long getMaxLateNanos() {
+        return mMaxLateNanos;
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining < 0) {
+            mMaxLateNanos = Math.max(mMaxLateNanos, -remaining);
+            return;
+        }
+        while (remaining > 0 && !mStopped) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.IOException;
+
+/**
+ * Lossless block codec for interleaved integer samples, in the style of FLAC's fixed predictors.
+ *
+ * Each channel of a block is coded independently: one of the fixed polynomial predictors of
+ * order 0-3 is chosen (the one with the smallest absolute residual sum), the residuals are
+ * zigzag-mapped to unsigned values and Rice coded with the parameter that gives the fewest bits.
+ * Per channel the stream holds
+ *
+ *   2 bits   predictor order
+ *   5 bits   Rice parameter k
+ *   order x 32 bits   warm-up samples
+ *   Rice codes for the remaining residuals: quotient in unary, then k low bits; a quotient of
+ *   {@code ESCAPE_QUOTIENT} or more is written as that many ones followed by the 32-bit value
+ *
+ * Arithmetic wraps like Java ints on both sides, so any int survives a round trip. Blocks are
+ * self-contained, which keeps recordings seekable at block granularity. Encoder and decoder work
+ * in arrays owned by the caller and allocate nothing.
+ */
+public class SampleCodec {
+    public static final int MAX_ORDER = 3;
+    //longer unary runs are replaced by a verbatim value, bounding the cost of outliers
+    public static final int ESCAPE_QUOTIENT = 24;
+    private static final int MAX_RICE_PARAMETER = 30;
+
+    private final int mChannels;
+    private final BitWriter mWriter = new BitWriter();
+    private final BitReader mReader = new BitReader();
+    //residuals of one channel for the chosen order
+    private final int[] mResiduals;
+
+    /**
+     * @param maxFrames Largest block that will be encoded or decoded.
+     */
+    public SampleCodec(int channels, int maxFrames) {
+        mChannels = channels;
+        mResiduals = new int[maxFrames];
+    }
+
+    /**
+     * @return Upper bound of the encoded size of a block, in bytes.
+     */
+    public static int maxEncodedSize(int channels, int frames) {
+        final long bitsPerChannel = 7 + MAX_ORDER * 32L + (long) frames * (ESCAPE_QUOTIENT + 32);
+        return (int) ((channels * bitsPerChannel + 7) / 8);
+    }
+
+    /**
+     * Encodes {@code frames} interleaved frames.
+     *
+     * @return The offset in {@code out} just past the encoded block.
+     */
+    public int encode(int[] samples, int frames, byte[] out, int offset) {
+        mWriter.reset(out, offset);
+        for (int c = 0; c < mChannels; c++) encodeChannel(samples, c, frames);
+        return mWriter.finish();
+    }
+
+    /**
+     * Decodes a block of {@code frames} frames into {@code samples}, interleaved.
+     *
+     * @throws IOException If the data is truncated.
+     */
+    public void decode(byte[] in, int offset, int length, int frames, int[] samples)
+            throws IOException {
+        mReader.reset(in, offset, length);
+        for (int c = 0; c < mChannels; c++) decodeChannel(samples, c, frames);
+    }
+
+    private void encodeChannel(int[] samples, int channel, int frames) {
+        final int stride = mChannels;
+        final int order = chooseOrder(samples, channel, frames);
+        final int warmUp = Math.min(order, frames);
+
+        //residuals of the chosen predictor, and the sum of their zigzag values
+        long sum = 0;
+        int n = 0;
+        for (int i = warmUp, p = channel + warmUp * stride; i < frames; i++, p += stride) {
+            final int residual = samples[p] - predict(samples, p, stride, order);
+            final int zigzag = (residual << 1) ^ (residual >> 31);
+            mResiduals[n++] = zigzag;
+            sum += zigzag & 0xFFFFFFFFL;
+        }
+        final int k = chooseRiceParameter(sum, n);
+
+        mWriter.write(order, 2);
+        mWriter.write(k, 5);
+        for (int i = 0, p = channel; i < warmUp; i++, p += stride) mWriter.write(samples[p], 32);
+        for (int i = 0; i < n; i++) {
+            final int value = mResiduals[i];
+            final long quotient = (value & 0xFFFFFFFFL) >>> k;
+            if (quotient < ESCAPE_QUOTIENT) {
+                mWriter.writeUnary((int) quotient);
+                mWriter.write(value, k);
+            } else {
+                mWriter.write(-1, ESCAPE_QUOTIENT);
+                mWriter.write(value, 32);
+            }
+        }
+    }
+
+    private void decodeChannel(int[] samples, int channel, int frames) throws IOException {
+        final int stride = mChannels;
+        final int order = mReader.read(2);
+        final int k = mReader.read(5);
+        final int warmUp = Math.min(order, frames);
+        int p = channel;
+        for (int i = 0; i < warmUp; i++, p += stride) samples[p] = mReader.read(32);
+        for (int i = warmUp; i < frames; i++, p += stride) {
+            final int quotient = mReader.readUnary(ESCAPE_QUOTIENT);
+            final int zigzag = quotient < ESCAPE_QUOTIENT
+                    ? (quotient << k) | mReader.read(k) : mReader.read(32);
+            final int residual = (zigzag >>> 1) ^ -(zigzag & 1);
+            samples[p] = residual + predict(samples, p, stride, order);
+        }
+    }
+
+    // Picks the fixed predictor with the smallest sum of absolute residuals.
+    private int chooseOrder(int[] samples, int channel, int frames) {
+        if (frames <= MAX_ORDER) return 0;
+        final int stride = mChannels;
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0;
+        int p = channel;
+        int x1 = 0, x2 = 0, x3 = 0;
+        for (int i = 0; i < frames; i++) {
+            final int x0 = samples[p];
+            if (i >= MAX_ORDER) {
+                e0 += Math.abs((long) x0);
+                e1 += Math.abs((long) x0 - x1);
+                e2 += Math.abs((long) x0 - 2L * x1 + x2);
+                e3 += Math.abs((long) x0 - 3L * x1 + 3L * x2 - x3);
+            }
+            x3 = x2;
+            x2 = x1;
+            x1 = x0;
+            p += stride;
+        }
+        int order = 0;
+        long best = e0;
+        if (e1 < best) { best = e1; order = 1; }
+        if (e2 < best) { best = e2; order = 2; }
+        if (e3 < best) { order = 3; }
+        return order;
+    }
+
+    private static int predict(int[] samples, int p, int stride, int order) {
+        switch (order) {
+            case 1:
+                return samples[p - stride];
+            case 2:
+                return 2 * samples[p - stride] - samples[p - 2 * stride];
+            case 3:
+                return 3 * samples[p - stride] - 3 * samples[p - 2 * stride]
+                        + samples[p - 3 * stride];
+            default:
+                return 0;
+        }
+    }
+
+    // Estimates the Rice parameter from the mean zigzag value, then checks its neighbours by
+    // counting the exact bits each would take.
+    private int chooseRiceParameter(long sum, int n) {
+        if (n == 0) return 0;
+        final long mean = sum / n;
+        final int estimate = mean == 0 ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+        int best = estimate;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1);
+                k <= Math.min(MAX_RICE_PARAMETER, estimate + 1); k++) {
+            long bits = 0;
+            for (int i = 0; i < n; i++) {
+                final long quotient = (mResiduals[i] & 0xFFFFFFFFL) >>> k;
+                bits += quotient < ESCAPE_QUOTIENT ? quotient + 1 + k : ESCAPE_QUOTIENT + 32;
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+}
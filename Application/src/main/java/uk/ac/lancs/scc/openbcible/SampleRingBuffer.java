@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/multi-consumer ring of decoded samples, stored as interleaved ints (one frame
+ * holds one sample for every channel).
+ *
+ * The producer never waits for consumers: a consumer that falls more than the capacity behind
+ * loses the oldest frames, which its {@code Cursor} counts as dropped. Each consumer owns a
+ * {@code Cursor} and reads batches into its own array, so reading takes no locks and allocates
+ * nothing. Frames are published one at a time through a volatile sequence, and a read is
+ * validated against that sequence afterwards so frames overwritten mid-copy are discarded rather
+ * than returned torn.
+ *
+ * Every frame also carries an int of flags, e.g. {@code FLAG_INTERPOLATED} for frames that were
+ * synthesised to fill a gap left by lost packets, or {@code FLAG_GAP} for the first frame after
+ * samples that were lost and not filled.
+ */
+public class SampleRingBuffer {
+    //the frame was not received but interpolated across a gap
+    public static final int FLAG_INTERPOLATED = 0x01;
+    //samples are missing immediately before this frame
+    public static final int FLAG_GAP = 0x02;
+
+    private final int mChannels;
+    private final int mCapacity;
+    private final int mMask;
+    private final int[] mData;
+    private final int[] mFlags;
+
+    //number of frames published so far; frame n lives in slot (n & mMask)
+    private final AtomicLong mWriteSeq = new AtomicLong();
+
+    /**
+     * @param channels Number of ints per frame.
+     * @param minCapacity Minimum number of frames retained, rounded up to a power of two.
+     */
+    public SampleRingBuffer(int channels, int minCapacity) {
+        if (channels < 1 || minCapacity < 1) {
+            throw new IllegalArgumentException("channels and capacity must be positive");
+        }
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) capacity <<= 1;
+        mChannels = channels;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mData = new int[capacity * channels];
+        mFlags = new int[capacity];
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Total number of frames published since creation.
+     */
+    public long getWriteSequence() {
+        return mWriteSeq.get();
+    }
+
+    /**
+     * Publishes frames. Must only be called from the single producer thread.
+     *
+     * @param src Interleaved samples, {@code getChannelCount()} ints per frame.
+     * @param offset Index in {@code src} of the first frame.
+     * @param frames Number of frames to publish.
+     */
+    public void publish(int[] src, int offset, int frames) {
+        publish(src, offset, frames, 0);
+    }
+
+    /**
+     * Publishes frames that all carry the given flags. Must only be called from the single
+     * producer thread.
+     */
+    public void publish(int[] src, int offset, int frames, int flags) {
+        long seq = mWriteSeq.get();
+        for (int f = 0; f < frames; f++) {
+            final int slot = (int) (seq & mMask);
+            System.arraycopy(src, offset + f * mChannels, mData, slot * mChannels, mChannels);
+            mFlags[slot] = flags;
+            seq++;
+            mWriteSeq.lazySet(seq);
+        }
+    }
+
+    /**
+     * @return A cursor positioned at the newest frame, i.e. it will see frames published from
+     *         now on.
+     */
+    public Cursor newCursor() {
+        return new Cursor(mWriteSeq.get());
+    }
+
+    /**
+     * A consumer's read position. A cursor must only be used by one thread at a time.
+     */
+    public class Cursor {
+        private long mReadSeq;
+        private long mDroppedFrames;
+
+        private Cursor(long readSeq) {
+            mReadSeq = readSeq;
+        }
+
+        /**
+         * Copies up to {@code maxFrames} unread frames into {@code dst}.
+         *
+         * @return The number of frames copied, 0 if nothing new has been published.
+         */
+        public int read(int[] dst, int maxFrames) {
+            return read(dst, null, maxFrames);
+        }
+
+        /**
+         * Copies up to {@code maxFrames} unread frames into {@code dst} and their flags into
+         * {@code flags}, which may be null if the caller does not need them.
+         *
+         * @return The number of frames copied, 0 if nothing new has been published.
+         */
+        public int read(int[] dst, int[] flags, int maxFrames) {
+            final long write = mWriteSeq.get();
+            skipOverwritten(write - mCapacity);
+            int frames = (int) Math.min(write - mReadSeq, maxFrames);
+            if (frames <= 0) return 0;
+
+            final int first = (int) (mReadSeq & mMask);
+            final int head = Math.min(frames, mCapacity - first);
+            System.arraycopy(mData, first * mChannels, dst, 0, head * mChannels);
+            if (flags != null) System.arraycopy(mFlags, first, flags, 0, head);
+            if (head < frames) {
+                System.arraycopy(mData, 0, dst, head * mChannels, (frames - head) * mChannels);
+                if (flags != null) System.arraycopy(mFlags, 0, flags, head, frames - head);
+            }
+
+            //the producer may have lapped us while copying; the slot of the frame it is writing
+            //now is also unsafe, hence the +1
+            final long oldestSafe = mWriteSeq.get() - mCapacity + 1;
+            if (mReadSeq < oldestSafe) {
+                final int torn = (int) Math.min(frames, oldestSafe - mReadSeq);
+                frames -= torn;
+                System.arraycopy(dst, torn * mChannels, dst, 0, frames * mChannels);
+                if (flags != null) System.arraycopy(flags, torn, flags, 0, frames);
+                mDroppedFrames += torn;
+                mReadSeq += torn;
+            }
+            mReadSeq += frames;
+            return frames;
+        }
+
+        /**
+         * @return Number of frames currently waiting for this cursor, capped at the capacity.
+         */
+        public int available() {
+            return (int) Math.min(mWriteSeq.get() - mReadSeq, mCapacity);
+        }
+
+        /**
+         * Moves the cursor to the newest frame, discarding anything unread.
+         */
+        public void skipToLatest() {
+            mReadSeq = mWriteSeq.get();
+        }
+
+        /**
+         * @return Number of frames this consumer lost because the producer overwrote them first.
+         */
+        public long getDroppedFrames() {
+            return mDroppedFrames;
+        }
+
+        private void skipOverwritten(long oldest) {
+            if (mReadSeq < oldest) {
+                mDroppedFrames += oldest - mReadSeq;
+                mReadSeq = oldest;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.IOException;
+
+/**
+ * Destination for a stream of decoded frames, e.g. a recording file. Called from a single
+ * background thread, normally a {@code SampleStreamWriter}, so implementations may block on I/O.
+ */
+public interface SampleSink {
+    /**
+     * Consumes frames. The arrays are reused by the caller once this returns.
+     *
+     * @param frames Interleaved samples, one int per channel per frame.
+     * @param flags The {@code SampleRingBuffer} flags of each frame.
+     * @param count Number of frames.
+     */
+    void writeFrames(int[] frames, int[] flags, int count) throws IOException;
+
+    /**
+     * Makes everything written so far durable, e.g. before the app may be killed.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Flushes and releases everything. No frames are written after this.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies frames from a {@code SampleRingBuffer} into a {@code SampleSink} on its own thread, so
+ * that the ingest thread never waits for disk I/O. The thread polls its cursor and hands the sink
+ * batches of frames in reused arrays.
+ *
+ * If the sink falls more than the ring's capacity behind, the overwritten frames are lost; the
+ * next frame written is then flagged with {@code SampleRingBuffer.FLAG_GAP}. An I/O error stops
+ * the writer and is kept for {@code getError()}. Has no Android dependencies.
+ */
+public class SampleStreamWriter implements Runnable {
+    //how long to wait for more frames when the ring is empty
+    private static final long POLL_INTERVAL_MILLIS = 20;
+
+    private final SampleRingBuffer.Cursor mCursor;
+    private final SampleSink mSink;
+    private final int mBatchFrames;
+    private final int[] mFrames;
+    private final int[] mFlags;
+    private final Thread mThread;
+
+    private volatile boolean mRunning;
+    private volatile boolean mSyncRequested;
+    private volatile long mFramesWritten;
+    private volatile IOException mError;
+    private long mLastDropped;
+
+    /**
+     * @param name Name of the writer thread.
+     * @param buffer Buffer to read from; frames published after construction are written.
+     * @param sink Receives the frames and is closed when the writer stops.
+     * @param batchFrames Maximum number of frames passed to the sink per call.
+     */
+    public SampleStreamWriter(String name, SampleRingBuffer buffer, SampleSink sink,
+                              int batchFrames) {
+        mCursor = buffer.newCursor();
+        mSink = sink;
+        mBatchFrames = batchFrames;
+        mFrames = new int[batchFrames * buffer.getChannelCount()];
+        mFlags = new int[batchFrames];
+        mThread = new Thread(this, name);
+        //keeping up matters, but never at the expense of the ingest thread
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Writes whatever is still buffered, closes the sink and waits for the thread to finish.
+     */
+    public void stop() {
+        mRunning = false;
+        //not interrupt(): that would close the sink's FileChannel under it
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks the writer thread to sync the sink once it has written what is buffered. Does not
+     * wait.
+     */
+    public void requestSync() {
+        mSyncRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * @return Frames lost because the sink could not keep up with the producer.
+     */
+    public long getDroppedFrames() {
+        return mCursor.getDroppedFrames();
+    }
+
+    /**
+     * @return The error that stopped the writer, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mRunning) {
+                if (mSyncRequested) {
+                    mSyncRequested = false;
+                    drain();
+                    mSink.sync();
+                } else if (drain() == 0) {
+                    //stop() unparks us to finish
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS));
+                }
+            }
+            drain();
+        } catch (IOException e) {
+            mError = e;
+            mRunning = false;
+        } finally {
+            try {
+                mSink.close();
+            } catch (IOException e) {
+                if (mError == null) mError = e;
+            }
+        }
+    }
+
+    // Passes everything currently readable to the sink. Returns the number of frames written.
+    private int drain() throws IOException {
+        int total = 0;
+        int frames;
+        while ((frames = mCursor.read(mFrames, mFlags, mBatchFrames)) > 0) {
+            final long dropped = mCursor.getDroppedFrames();
+            if (dropped != mLastDropped) {
+                mFlags[0] |= SampleRingBuffer.FLAG_GAP;
+                mLastDropped = dropped;
+            }
+            mSink.writeFrames(mFrames, mFlags, frames);
+            mFramesWritten += frames;
+            total += frames;
+        }
+        return total;
+    }
+}
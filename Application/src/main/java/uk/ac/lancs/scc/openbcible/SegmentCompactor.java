@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Recodes closed recording segments with Rice coding on a single lowest-priority thread. Segments
+ * are recorded raw so that the recording thread does as little as possible; once a segment is
+ * closed it is read back with {@code SessionReader}, written to a temporary file with
+ * {@code SessionRecorder.ENCODING_RICE} and renamed over the original, and the manifest is
+ * updated. The thread yields after every block, so it only uses time nothing else wants.
+ *
+ * A segment that fails to compact is left raw; it is still complete and readable. A session with
+ * segments queued or in progress is reported by {@code isBusy}, so that {@code SessionStore}
+ * leaves it alone; a session deleted anyway is not brought back. Has no Android dependencies.
+ */
+public class SegmentCompactor implements Runnable {
+    /**
+     * Told about every segment processed, on the compactor thread.
+     */
+    public interface Listener {
+        /**
+         * @param error Null if the segment was compacted.
+         */
+        void onSegmentCompacted(SessionManifest manifest, int segment, IOException error);
+    }
+
+    //suffix of the file a segment is recoded into
+    public static final String TEMP_SUFFIX = ".compacting";
+
+    private static final int BLOCK_FRAMES = 1024;
+
+    private static class Task {
+        final SessionManifest manifest;
+        final int segment;
+
+        Task(SessionManifest manifest, int segment) {
+            this.manifest = manifest;
+            this.segment = segment;
+        }
+    }
+
+    //tells the thread to exit
+    private static final Task STOP = new Task(null, -1);
+
+    private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<Task>();
+    //queued and running tasks per manifest file
+    private final Map<File, Integer> mBusy = new HashMap<File, Integer>();
+    private final Listener mListener;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+    private volatile long mBytesSaved;
+
+    /**
+     * @param listener May be null.
+     */
+    public SegmentCompactor(Listener listener) {
+        mListener = listener;
+        mThread = new Thread(this, "OpenBCIBLE-compactor");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Queues a closed segment. Does not wait.
+     */
+    public void submit(SessionManifest manifest, int segment) {
+        if (mStopped) return;
+        synchronized (mBusy) {
+            final File key = manifest.getFile().getAbsoluteFile();
+            final Integer count = mBusy.get(key);
+            mBusy.put(key, count == null ? 1 : count + 1);
+        }
+        mQueue.add(new Task(manifest, segment));
+    }
+
+    /**
+     * @return True if segments of the session with this manifest are queued or being compacted.
+     */
+    public boolean isBusy(File manifestFile) {
+        synchronized (mBusy) {
+            return mBusy.containsKey(manifestFile.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Drops queued segments and ends the thread after the segment in progress. Does not wait.
+     * Segments not compacted stay raw, and are marked as such in their manifests.
+     */
+    public void shutdown() {
+        mStopped = true;
+        mQueue.clear();
+        synchronized (mBusy) {
+            mBusy.clear();
+        }
+        mQueue.add(STOP);
+    }
+
+    /**
+     * Waits for the thread to end after {@code shutdown}.
+     */
+    public void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * @return Segments waiting to be compacted.
+     */
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The total size reduction of the segments compacted so far.
+     */
+    public long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Task task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) return;
+            IOException error = null;
+            try {
+                compact(task.manifest, task.segment);
+            } catch (IOException e) {
+                error = e;
+            }
+            done(task.manifest);
+            if (mListener != null) mListener.onSegmentCompacted(task.manifest, task.segment, error);
+        }
+    }
+
+    private void done(SessionManifest manifest) {
+        synchronized (mBusy) {
+            final File key = manifest.getFile().getAbsoluteFile();
+            final Integer count = mBusy.get(key);
+            if (count == null || count <= 1) {
+                mBusy.remove(key);
+            } else {
+                mBusy.put(key, count - 1);
+            }
+        }
+    }
+
+    private void compact(SessionManifest manifest, int segment) throws IOException {
+        if (manifest.getSegmentState(segment) != SessionManifest.STATE_CLOSED) return;
+        final File file = manifest.getSegmentFile(segment);
+        final File tmp = new File(file.getPath() + TEMP_SUFFIX);
+        final long before = file.length();
+
+        final SessionReader reader = new SessionReader(file);
+        try {
+            final SessionHeader header = reader.getHeader();
+            final SessionRecorder recorder = new SessionRecorder(tmp,
+                    header.copy(header.getStartTimeMillis()), SessionRecorder.ENCODING_RICE,
+                    SyncPolicy.onPause());
+            try {
+                final int[] frames = new int[BLOCK_FRAMES * header.getChannelCount()];
+                final int[] flags = new int[BLOCK_FRAMES];
+                int n;
+                while ((n = reader.read(frames, flags, BLOCK_FRAMES)) > 0) {
+                    recorder.writeFrames(frames, flags, n);
+                    if (mStopped) throw new IOException("compactor stopped");
+                    Thread.yield();
+                }
+            } finally {
+                recorder.close();
+            }
+        } catch (IOException e) {
+            //keep the raw segment
+            tmp.delete();
+            SessionIndex.fileFor(tmp).delete();
+            throw e;
+        } finally {
+            reader.close();
+        }
+
+        //the session may have been deleted meanwhile; don't bring it back
+        if (!manifest.getFile().exists() || !file.exists()) {
+            tmp.delete();
+            SessionIndex.fileFor(tmp).delete();
+            return;
+        }
+
+        //without an index the reader rebuilds one, so a crash between the renames is harmless
+        final File index = SessionIndex.fileFor(file);
+        index.delete();
+        if (!tmp.renameTo(file)) throw new IOException("unable to replace " + file);
+        SessionIndex.fileFor(tmp).renameTo(index);
+
+        final long after = file.length();
+        mBytesSaved += before - after;
+        manifest.updateSegment(segment, manifest.getSegmentFrames(segment), after,
+                SessionManifest.STATE_COMPACTED);
+        manifest.save();
+    }
+}
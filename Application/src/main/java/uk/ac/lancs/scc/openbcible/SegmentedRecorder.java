@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Records a sample stream as a series of session files ("segments") tied together by a
+ * {@code SessionManifest}, so that a long recording is never one huge file and damage to one
+ * segment loses only that segment. A new segment is started when the current one reaches the
+ * duration or size limit; segments always end on a chunk boundary, and each one is a complete
+ * session file starting at its own time.
+ *
+ * Segments are recorded raw and, once closed, handed to a {@code SegmentCompactor} to be
+ * recoded in the background. Segment files are named after the manifest with a three-digit
+ * number, e.g. "session-20170714-024000-001.obr". Meant to be driven by a
+ * {@code SampleStreamWriter}.
+ */
+public class SegmentedRecorder implements SampleSink {
+    private final SessionManifest mManifest;
+    private final SessionHeader mHeader;
+    private final String mBaseName;
+    private final int mChunkFrames;
+    private final long mMaxSegmentFrames;
+    private final long mMaxSegmentBytes;
+    private final SyncPolicy mSyncPolicy;
+    private final SegmentCompactor mCompactor;
+
+    private SessionRecorder mSegment;
+    private int mSegmentIndex = -1;
+    private long mSegmentFrames;
+    private long mFramesWritten;
+    private boolean mClosed;
+
+    //parts of a batch are copied into these, since SessionRecorder takes whole arrays
+    private int[] mSliceFrames;
+    private int[] mSliceFlags;
+
+    /**
+     * Creates the manifest. The first segment is created with the first frame.
+     *
+     * @param manifestFile Manifest to create (or overwrite); segments go in the same directory.
+     * @param header Describes the stream; each segment gets a copy with its own start time.
+     * @param maxSegmentMillis Duration after which to start a new segment, or 0 for no limit.
+     * @param maxSegmentBytes Size after which to start a new segment, or 0 for no limit.
+     * @param compactor Recodes closed segments; may be null to leave them raw.
+     */
+    public SegmentedRecorder(File manifestFile, SessionHeader header, long maxSegmentMillis,
+                             long maxSegmentBytes, SyncPolicy syncPolicy,
+                             SegmentCompactor compactor) throws IOException {
+        mManifest = new SessionManifest(manifestFile, header.getStartTimeMillis());
+        mHeader = header;
+        final String name = manifestFile.getName();
+        mBaseName = name.endsWith(SessionManifest.FILE_EXTENSION)
+                ? name.substring(0, name.length() - SessionManifest.FILE_EXTENSION.length())
+                : name;
+        mChunkFrames = header.getChunkFrames();
+        //rounded up to whole chunks
+        final long frames = (long) Math.ceil(maxSegmentMillis * header.getSampleRate() / 1000.0);
+        mMaxSegmentFrames = maxSegmentMillis <= 0 ? Long.MAX_VALUE
+                : Math.max(1, (frames + mChunkFrames - 1) / mChunkFrames) * mChunkFrames;
+        mMaxSegmentBytes = maxSegmentBytes <= 0 ? Long.MAX_VALUE : maxSegmentBytes;
+        mSyncPolicy = syncPolicy;
+        mCompactor = compactor;
+        mManifest.save();
+    }
+
+    @Override
+    public void writeFrames(int[] frames, int[] flags, int count) throws IOException {
+        final int channels = mHeader.getChannelCount();
+        int offset = 0;
+        while (offset < count) {
+            if (mSegment == null) openSegment();
+            //never past the end of the current chunk, so rotation happens between chunks
+            final int n = (int) Math.min(count - offset,
+                    mChunkFrames - mSegmentFrames % mChunkFrames);
+            if (offset == 0 && n == count) {
+                mSegment.writeFrames(frames, flags, n);
+            } else {
+                writeSlice(frames, flags, offset, n, channels);
+            }
+            offset += n;
+            mSegmentFrames += n;
+            mFramesWritten += n;
+            if (mSegmentFrames % mChunkFrames == 0 && (mSegmentFrames >= mMaxSegmentFrames
+                    || mSegment.getBytesWritten() >= mMaxSegmentBytes)) {
+                closeSegment();
+            }
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (mSegment != null) mSegment.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        if (mSegment != null) closeSegment();
+        mManifest.setComplete(true);
+        mManifest.save();
+    }
+
+    public SessionManifest getManifest() {
+        return mManifest;
+    }
+
+    /**
+     * @return The segment being written, or null between segments.
+     */
+    public synchronized File getCurrentSegmentFile() {
+        return mSegment == null ? null : mSegment.getFile();
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    private void writeSlice(int[] frames, int[] flags, int offset, int n, int channels)
+            throws IOException {
+        if (mSliceFrames == null) {
+            mSliceFrames = new int[mChunkFrames * channels];
+            mSliceFlags = new int[mChunkFrames];
+        }
+        System.arraycopy(frames, offset * channels, mSliceFrames, 0, n * channels);
+        System.arraycopy(flags, offset, mSliceFlags, 0, n);
+        mSegment.writeFrames(mSliceFrames, mSliceFlags, n);
+    }
+
+    private void openSegment() throws IOException {
+        final int number = mManifest.getSegmentCount();
+        final String name = String.format(Locale.US, "%s-%03d%s", mBaseName, number,
+                SessionRecorder.FILE_EXTENSION);
+        final File file = new File(mManifest.getFile().getParentFile(), name);
+        final long startMillis = mManifest.getStartTimeMillis()
+                + Math.round(mFramesWritten * 1000.0 / mHeader.getSampleRate());
+        final SessionRecorder segment = new SessionRecorder(file, mHeader.copy(startMillis),
+                SessionRecorder.ENCODING_RAW, mSyncPolicy);
+        synchronized (this) {
+            mSegment = segment;
+        }
+        mSegmentIndex = mManifest.addSegment(name, mFramesWritten);
+        mSegmentFrames = 0;
+        mManifest.save();
+    }
+
+    private void closeSegment() throws IOException {
+        final SessionRecorder segment = mSegment;
+        synchronized (this) {
+            mSegment = null;
+        }
+        segment.close();
+        mManifest.updateSegment(mSegmentIndex, mSegmentFrames, segment.getFile().length(),
+                SessionManifest.STATE_CLOSED);
+        mManifest.save();
+        if (mCompactor != null) mCompactor.submit(mManifest, mSegmentIndex);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The fixed-size header at the start of a recorded session file: where the samples came from and
+ * how to turn them back into physical units. All values are little-endian.
+ *
+ * Layout:
+ *   0    magic "OBCS"
+ *   4    format version
+ *   8    header size
+ *   12   channel count
+ *   16   sample rate in Hz (float)
+ *   20   frames per chunk
+ *   24   start time, ms since the epoch
+ *   32   total frames, written when the recording is closed
+ *   40   total data chunks, written when the recording is closed
+ *   44   header flags
+ *   48   device address, profile name: each a length-prefixed UTF-8 string of up to 64 bytes
+ *   180  microvolts per count, one double per channel
+ */
+public class SessionHeader {
+    public static final int MAGIC = 0x5343424F;
+    //2: chunks carry a CRC32, commit markers
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 512;
+    public static final int MAX_CHANNELS = 16;
+
+    //the recording was closed cleanly and the totals are valid
+    public static final int FLAG_COMPLETE = 0x01;
+    //the recording was not closed; SessionRecovery truncated it to its last valid chunk
+    public static final int FLAG_RECOVERED = 0x02;
+
+    private static final int MAX_STRING_BYTES = 64;
+    private static final int OFFSET_STRINGS = 48;
+    private static final int OFFSET_SCALE_FACTORS =
+            OFFSET_STRINGS + 2 * (2 + MAX_STRING_BYTES);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String mDeviceAddress;
+    private final String mProfileName;
+    private final float mSampleRate;
+    private final double[] mScaleFactors;
+    private final int mChunkFrames;
+    private final long mStartTimeMillis;
+    private int mVersion = VERSION;
+    private long mFrameCount;
+    private int mChunkCount;
+    private int mFlags;
+
+    /**
+     * @param scaleFactors Microvolts per count for each channel; its length is the channel count.
+     */
+    public SessionHeader(String deviceAddress, String profileName, float sampleRate,
+                         double[] scaleFactors, int chunkFrames, long startTimeMillis) {
+        if (scaleFactors.length < 1 || scaleFactors.length > MAX_CHANNELS) {
+            throw new IllegalArgumentException("unsupported channel count " + scaleFactors.length);
+        }
+        mDeviceAddress = deviceAddress == null ? "" : deviceAddress;
+        mProfileName = profileName == null ? "" : profileName;
+        mSampleRate = sampleRate;
+        mScaleFactors = scaleFactors.clone();
+        mChunkFrames = chunkFrames;
+        mStartTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * Builds the header for a stream from one of the {@code IngestPipeline.SOURCE_} boards.
+     */
+    public static SessionHeader forSource(int source, String deviceAddress, String profileName,
+                                          int chunkFrames, long startTimeMillis) {
+        final double[] scale;
+        final int rate;
+        if (source == IngestPipeline.SOURCE_GANGLION) {
+            scale = new double[GanglionDecoder.NUM_CHANNELS];
+            Arrays.fill(scale, GanglionDecoder.SCALE_FACTOR_UV);
+            rate = GanglionDecoder.SAMPLE_RATE_HZ;
+        } else {
+            scale = new double[CytonPacketParser.NUM_CHANNELS];
+            Arrays.fill(scale, CytonPacketParser.SCALE_FACTOR_UV);
+            rate = CytonPacketParser.SAMPLE_RATE_HZ;
+        }
+        return new SessionHeader(deviceAddress, profileName, rate, scale, chunkFrames,
+                startTimeMillis);
+    }
+
+    /**
+     * @return A header for the same source starting at {@code startTimeMillis}, with no totals
+     *         and only the {@code FLAG_RECOVERED} flag kept.
+     */
+    public SessionHeader copy(long startTimeMillis) {
+        final SessionHeader header = new SessionHeader(mDeviceAddress, mProfileName, mSampleRate,
+                mScaleFactors, mChunkFrames, startTimeMillis);
+        header.mFlags = mFlags & FLAG_RECOVERED;
+        return header;
+    }
+
+    /**
+     * Reads a header written by {@code write}.
+     *
+     * @throws IOException If the buffer does not hold a session header of a known version.
+     */
+    public static SessionHeader read(ByteBuffer src) throws IOException {
+        final ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = in.position();
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("not a session file");
+        }
+        final int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported session version " + version);
+        }
+        in.getInt();
+        final int channels = in.getInt();
+        if (channels < 1 || channels > MAX_CHANNELS) {
+            throw new IOException("bad channel count " + channels);
+        }
+        final float sampleRate = in.getFloat();
+        final int chunkFrames = in.getInt();
+        final long startTime = in.getLong();
+        final long frameCount = in.getLong();
+        final int chunkCount = in.getInt();
+        final int flags = in.getInt();
+        in.position(base + OFFSET_STRINGS);
+        final String address = getString(in);
+        final String profile = getString(in);
+        in.position(base + OFFSET_SCALE_FACTORS);
+        final double[] scale = new double[channels];
+        for (int c = 0; c < channels; c++) scale[c] = in.getDouble();
+
+        final SessionHeader header =
+                new SessionHeader(address, profile, sampleRate, scale, chunkFrames, startTime);
+        header.mVersion = version;
+        header.mFrameCount = frameCount;
+        header.mChunkCount = chunkCount;
+        header.mFlags = flags;
+        return header;
+    }
+
+    /**
+     * Writes the header as {@code HEADER_SIZE} bytes at the buffer's position.
+     */
+    public void write(ByteBuffer dst) {
+        final ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = out.position();
+        out.putInt(MAGIC).putInt(mVersion).putInt(HEADER_SIZE).putInt(mScaleFactors.length);
+        out.putFloat(mSampleRate).putInt(mChunkFrames).putLong(mStartTimeMillis);
+        out.putLong(mFrameCount).putInt(mChunkCount).putInt(mFlags);
+        putString(out, mDeviceAddress);
+        putString(out, mProfileName);
+        out.position(base + OFFSET_SCALE_FACTORS);
+        for (double scale : mScaleFactors) out.putDouble(scale);
+        while (out.position() < base + HEADER_SIZE) out.put((byte) 0);
+        dst.position(base + HEADER_SIZE);
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public String getProfileName() {
+        return mProfileName;
+    }
+
+    public float getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mScaleFactors.length;
+    }
+
+    public double getScaleFactor(int channel) {
+        return mScaleFactors[channel];
+    }
+
+    public int getChunkFrames() {
+        return mChunkFrames;
+    }
+
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public void setFrameCount(long frameCount) {
+        mFrameCount = frameCount;
+    }
+
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    public void setChunkCount(int chunkCount) {
+        mChunkCount = chunkCount;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > MAX_STRING_BYTES) bytes = Arrays.copyOf(bytes, MAX_STRING_BYTES);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+        for (int i = bytes.length; i < MAX_STRING_BYTES; i++) out.put((byte) 0);
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        final int length = in.getShort();
+        if (length < 0 || length > MAX_STRING_BYTES) throw new IOException("bad string length");
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        in.position(in.position() + MAX_STRING_BYTES - length);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sparse index of a session file, one entry per data chunk: the chunk's first frame, its offset
+ * in the file, its frame count and each channel's minimum and maximum. Frames are numbered
+ * consecutively through the session, so a time maps to a frame through the sample rate and a
+ * frame to its chunk by binary search; the min/max values are enough to draw an overview
+ * without decoding anything.
+ *
+ * The index lives in a sidecar file next to the session ({@code fileFor}). Layout,
+ * little-endian: magic "OBIX", version, channel count, then fixed-size entries
+ * (first frame long, offset long, frame count int, min/max int pairs per channel).
+ */
+public class SessionIndex {
+    public static final String FILE_SUFFIX = ".idx";
+    public static final int MAGIC = 0x5849424F;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final int mChannels;
+    private int mCount;
+    private long[] mFirstFrames;
+    private long[] mOffsets;
+    private int[] mFrames;
+    //min then max per channel, per entry
+    private int[] mMinMax;
+
+    public SessionIndex(int channels, int initialCapacity) {
+        mChannels = channels;
+        final int capacity = Math.max(initialCapacity, 16);
+        mFirstFrames = new long[capacity];
+        mOffsets = new long[capacity];
+        mFrames = new int[capacity];
+        mMinMax = new int[capacity * channels * 2];
+    }
+
+    /**
+     * @return The sidecar index file of a session file.
+     */
+    public static File fileFor(File session) {
+        return new File(session.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * @return Size in bytes of one entry on disk.
+     */
+    public static int entrySize(int channels) {
+        return 8 + 8 + 4 + channels * 8;
+    }
+
+    /**
+     * Loads up to {@code maxEntries} entries from an index file, stopping early at a torn entry.
+     *
+     * @return The index, or null if the file is missing or not an index for this many channels.
+     */
+    public static SessionIndex load(File file, int channels, int maxEntries) throws IOException {
+        if (!file.isFile()) return null;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final int entrySize = entrySize(channels);
+            final long available = (channel.size() - HEADER_SIZE) / entrySize;
+            if (available < 0) return null;
+            final int count = (int) Math.min(available, maxEntries);
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * entrySize)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION || buffer.getInt() != channels) {
+                return null;
+            }
+            final SessionIndex index = new SessionIndex(channels, count);
+            final int[] min = new int[channels];
+            final int[] max = new int[channels];
+            for (int i = 0; i < count; i++) {
+                final long firstFrame = buffer.getLong();
+                final long offset = buffer.getLong();
+                final int frames = buffer.getInt();
+                for (int c = 0; c < channels; c++) {
+                    min[c] = buffer.getInt();
+                    max[c] = buffer.getInt();
+                }
+                index.add(firstFrame, offset, frames, min, max);
+            }
+            return index;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Cuts an index file down to its first {@code entries} entries, e.g. after the session was
+     * truncated by recovery.
+     */
+    public static void truncate(File file, int channels, int entries) throws IOException {
+        if (!file.isFile()) return;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = HEADER_SIZE + (long) entries * entrySize(channels);
+            if (raf.length() > length) raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends an entry. Entries must be added in file order.
+     */
+    public void add(long firstFrame, long offset, int frames, int[] min, int[] max) {
+        if (mCount == mFirstFrames.length) {
+            final int capacity = mCount * 2;
+            mFirstFrames = Arrays.copyOf(mFirstFrames, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mFrames = Arrays.copyOf(mFrames, capacity);
+            mMinMax = Arrays.copyOf(mMinMax, capacity * mChannels * 2);
+        }
+        mFirstFrames[mCount] = firstFrame;
+        mOffsets[mCount] = offset;
+        mFrames[mCount] = frames;
+        final int base = mCount * mChannels * 2;
+        for (int c = 0; c < mChannels; c++) {
+            mMinMax[base + c * 2] = min[c];
+            mMinMax[base + c * 2 + 1] = max[c];
+        }
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return The entry holding {@code frame}, or -1 if it is before the first or after the last
+     *         indexed frame. O(log n).
+     */
+    public int find(long frame) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mFirstFrames[mid] > frame) {
+                high = mid - 1;
+            } else if (mFirstFrames[mid] + mFrames[mid] <= frame) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public long getFirstFrame(int entry) {
+        return mFirstFrames[entry];
+    }
+
+    public long getOffset(int entry) {
+        return mOffsets[entry];
+    }
+
+    public int getFrames(int entry) {
+        return mFrames[entry];
+    }
+
+    public int getMin(int entry, int channel) {
+        return mMinMax[(entry * mChannels + channel) * 2];
+    }
+
+    public int getMax(int entry, int channel) {
+        return mMinMax[(entry * mChannels + channel) * 2 + 1];
+    }
+
+    /**
+     * @return The total number of frames covered.
+     */
+    public long getFrameCount() {
+        return mCount == 0 ? 0 : mFirstFrames[mCount - 1] + mFrames[mCount - 1];
+    }
+
+    /**
+     * Appends entries to a new index file as the recorder writes chunks.
+     */
+    public static class Writer implements Closeable {
+        private final BufferedOutputStream mOut;
+        private final ByteBuffer mEntry;
+        private final int mChannels;
+
+        public Writer(File file, int channels) throws IOException {
+            mChannels = channels;
+            mOut = new BufferedOutputStream(new FileOutputStream(file), 16 * 1024);
+            mEntry = ByteBuffer.allocate(Math.max(HEADER_SIZE, entrySize(channels)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mEntry.putInt(MAGIC).putInt(VERSION).putInt(channels);
+            mOut.write(mEntry.array(), 0, HEADER_SIZE);
+        }
+
+        public void append(long firstFrame, long offset, int frames, int[] min, int[] max)
+                throws IOException {
+            mEntry.clear();
+            mEntry.putLong(firstFrame).putLong(offset).putInt(frames);
+            for (int c = 0; c < mChannels; c++) mEntry.putInt(min[c]).putInt(max[c]);
+            mOut.write(mEntry.array(), 0, mEntry.position());
+        }
+
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ties the segment files of one recording together. A text file next to the segments:
+ *
+ *   OBCM 1
+ *   start 1500000000000
+ *   complete 0
+ *   segment session-20170714-024000-000.obr 0 150016 4812345 2
+ *
+ * with one segment line per segment: file name (relative to the manifest), number of the
+ * segment's first frame in the session, frame count, size in bytes and {@code STATE_} value.
+ * Frame counts and sizes are filled in when a segment is closed. The file is rewritten whole
+ * through a temporary file and a rename, so a reader never sees it half written.
+ *
+ * Updated by the recorder and the compactor on different threads; every method is synchronized.
+ */
+public class SessionManifest {
+    public static final String FILE_EXTENSION = ".obm";
+
+    //being written; its counts are not known until it is closed or recovered
+    public static final int STATE_RECORDING = 0;
+    //closed, samples stored raw
+    public static final int STATE_CLOSED = 1;
+    //closed and recoded by the compactor
+    public static final int STATE_COMPACTED = 2;
+
+    private static final String MAGIC = "OBCM";
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Segment {
+        String name;
+        long firstFrame;
+        long frames;
+        long bytes;
+        int state;
+    }
+
+    private final File mFile;
+    private final long mStartTimeMillis;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private boolean mComplete;
+
+    public SessionManifest(File file, long startTimeMillis) {
+        mFile = file;
+        mStartTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * Reads a manifest written by {@code save}.
+     *
+     * @throws IOException If the file cannot be read or is not a manifest.
+     */
+    public static SessionManifest load(File file) throws IOException {
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            final String first = in.readLine();
+            if (first == null || !first.equals(MAGIC + " " + VERSION)) {
+                throw new IOException("not a session manifest: " + file);
+            }
+            SessionManifest manifest = null;
+            boolean complete = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                try {
+                    if (fields[0].equals("start") && fields.length == 2) {
+                        manifest = new SessionManifest(file, Long.parseLong(fields[1]));
+                    } else if (fields[0].equals("complete") && fields.length == 2) {
+                        complete = fields[1].equals("1");
+                    } else if (fields[0].equals("segment") && fields.length == 6
+                            && manifest != null) {
+                        final Segment segment = new Segment();
+                        segment.name = fields[1];
+                        segment.firstFrame = Long.parseLong(fields[2]);
+                        segment.frames = Long.parseLong(fields[3]);
+                        segment.bytes = Long.parseLong(fields[4]);
+                        segment.state = Integer.parseInt(fields[5]);
+                        manifest.mSegments.add(segment);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad manifest line '" + line + "' in " + file);
+                }
+            }
+            if (manifest == null) throw new IOException("no start time in " + file);
+            manifest.mComplete = complete;
+            return manifest;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the manifest out, replacing the previous version atomically.
+     */
+    public synchronized void save() throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            final Writer writer = new OutputStreamWriter(out, UTF_8);
+            writer.write(MAGIC + " " + VERSION + "\n");
+            writer.write("start " + mStartTimeMillis + "\n");
+            writer.write("complete " + (mComplete ? 1 : 0) + "\n");
+            for (Segment segment : mSegments) {
+                writer.write("segment " + segment.name + " " + segment.firstFrame + " "
+                        + segment.frames + " " + segment.bytes + " " + segment.state + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) throw new IOException("unable to replace " + mFile);
+    }
+
+    /**
+     * Adds a segment in {@code STATE_RECORDING}.
+     *
+     * @return Its index.
+     */
+    public synchronized int addSegment(String name, long firstFrame) {
+        final Segment segment = new Segment();
+        segment.name = name;
+        segment.firstFrame = firstFrame;
+        segment.state = STATE_RECORDING;
+        mSegments.add(segment);
+        return mSegments.size() - 1;
+    }
+
+    public synchronized void updateSegment(int index, long frames, long bytes, int state) {
+        final Segment segment = mSegments.get(index);
+        segment.frames = frames;
+        segment.bytes = bytes;
+        segment.state = state;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    public synchronized void setComplete(boolean complete) {
+        mComplete = complete;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return The segment's file, next to the manifest.
+     */
+    public synchronized File getSegmentFile(int index) {
+        return new File(mFile.getParentFile(), mSegments.get(index).name);
+    }
+
+    public synchronized long getSegmentFirstFrame(int index) {
+        return mSegments.get(index).firstFrame;
+    }
+
+    public synchronized long getSegmentFrames(int index) {
+        return mSegments.get(index).frames;
+    }
+
+    public synchronized long getSegmentBytes(int index) {
+        return mSegments.get(index).bytes;
+    }
+
+    public synchronized int getSegmentState(int index) {
+        return mSegments.get(index).state;
+    }
+
+    /**
+     * @return The frames in all closed segments.
+     */
+    public synchronized long getFrameCount() {
+        long frames = 0;
+        for (Segment segment : mSegments) frames += segment.frames;
+        return frames;
+    }
+
+    /**
+     * @return The bytes of all closed segments.
+     */
+    public synchronized long getByteCount() {
+        long bytes = 0;
+        for (Segment segment : mSegments) bytes += segment.bytes;
+        return bytes;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to a session file written by {@code SessionRecorder}. Seeking finds the chunk
+ * holding a frame by binary search of the {@code SessionIndex}, so it costs one chunk read and
+ * decode however long the recording is; {@code getOverview} summarises any range from the index
+ * alone. If the index is missing or shorter than the file, the missing entries are rebuilt by
+ * scanning the chunks after the last indexed one.
+ *
+ * Frames are numbered from 0 in the order they were recorded; a frame's time is its number over
+ * the sample rate. Not thread-safe. Has no Android dependencies.
+ */
+public class SessionReader implements Closeable {
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final SessionHeader mHeader;
+    private final SessionIndex mIndex;
+    private final int mChannels;
+    private final SampleCodec mCodec;
+    private final CRC32 mCrc = new CRC32();
+
+    //one chunk as stored, and the same chunk decoded
+    private final ByteBuffer mChunk;
+    private final int[] mSamples;
+    private final int[] mFlags;
+    private int mDecodedEntry = -1;
+
+    private long mPosition;
+    private int mEntry;
+
+    public SessionReader(File file) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            mChannel = mRandomAccessFile.getChannel();
+            final ByteBuffer headerBuffer = ByteBuffer.allocate(SessionHeader.HEADER_SIZE);
+            readFully(headerBuffer, 0, SessionHeader.HEADER_SIZE);
+            headerBuffer.rewind();
+            mHeader = SessionHeader.read(headerBuffer);
+            mChannels = mHeader.getChannelCount();
+            final int chunkFrames = mHeader.getChunkFrames();
+            mCodec = new SampleCodec(mChannels, chunkFrames);
+            mChunk = ByteBuffer.allocate(Math.max(
+                    SessionRecorder.maxChunkSize(mChannels, chunkFrames),
+                    SessionRecorder.CHUNK_HEADER_SIZE
+                            + SampleCodec.maxEncodedSize(mChannels, chunkFrames) + chunkFrames))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mSamples = new int[chunkFrames * mChannels];
+            mFlags = new int[chunkFrames];
+
+            //an unclosed file has no chunk count; trust whatever can be verified
+            final boolean complete = (mHeader.getFlags() & SessionHeader.FLAG_COMPLETE) != 0;
+            final int expected = complete ? mHeader.getChunkCount() : Integer.MAX_VALUE;
+            SessionIndex index = SessionIndex.load(SessionIndex.fileFor(file), mChannels,
+                    expected);
+            if (index == null) {
+                index = new SessionIndex(mChannels, complete ? expected : 0);
+            }
+            mIndex = index;
+            if (mIndex.size() < expected) rebuildIndex(expected);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public SessionHeader getHeader() {
+        return mHeader;
+    }
+
+    public SessionIndex getIndex() {
+        return mIndex;
+    }
+
+    public long getFrameCount() {
+        return mIndex.getFrameCount();
+    }
+
+    /**
+     * @return The number of the next frame {@code read} returns.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Moves to {@code frame}, clamped to the recording.
+     */
+    public void seek(long frame) {
+        mPosition = Math.max(0, Math.min(frame, getFrameCount()));
+        mEntry = mPosition < getFrameCount() ? mIndex.find(mPosition) : mIndex.size();
+    }
+
+    /**
+     * Moves to the frame at {@code seconds} from the start of the recording.
+     */
+    public void seekToTime(double seconds) {
+        seek(Math.round(seconds * mHeader.getSampleRate()));
+    }
+
+    /**
+     * Reads up to {@code maxFrames} frames from the current position into {@code frames}
+     * (interleaved) and their {@code SampleRingBuffer} flags into {@code flags}.
+     *
+     * @return The number of frames read, 0 at the end of the recording.
+     * @throws IOException If a chunk fails its checksum or cannot be decoded.
+     */
+    public int read(int[] frames, int[] flags, int maxFrames) throws IOException {
+        int count = 0;
+        while (count < maxFrames && mEntry < mIndex.size()) {
+            if (mDecodedEntry != mEntry) loadChunk(mEntry);
+            final long first = mIndex.getFirstFrame(mEntry);
+            final int start = (int) (mPosition - first);
+            final int n = Math.min(maxFrames - count, mIndex.getFrames(mEntry) - start);
+            System.arraycopy(mSamples, start * mChannels, frames, count * mChannels,
+                    n * mChannels);
+            System.arraycopy(mFlags, start, flags, count, n);
+            count += n;
+            mPosition += n;
+            if (mPosition == first + mIndex.getFrames(mEntry)) mEntry++;
+        }
+        return count;
+    }
+
+    /**
+     * Summarises frames {@code [startFrame, endFrame)} into {@code columns} buckets of per-channel
+     * min and max, from the index only. Each bucket covers whole chunks, so the result is exact
+     * at chunk granularity and never hides a peak.
+     *
+     * @param min Receives {@code columns} x channel count values, interleaved by channel.
+     * @param max As {@code min}.
+     * @return The number of buckets filled; fewer than {@code columns} if the range spans fewer
+     *         chunks.
+     */
+    public int getOverview(long startFrame, long endFrame, int columns, int[] min, int[] max) {
+        final long total = getFrameCount();
+        startFrame = Math.max(0, startFrame);
+        endFrame = Math.min(endFrame, total);
+        if (columns <= 0 || startFrame >= endFrame) return 0;
+        final int firstEntry = mIndex.find(startFrame);
+        final int lastEntry = mIndex.find(endFrame - 1);
+        final int entries = lastEntry - firstEntry + 1;
+        final int buckets = Math.min(columns, entries);
+        for (int b = 0; b < buckets; b++) {
+            final int from = firstEntry + (int) ((long) b * entries / buckets);
+            final int to = firstEntry + (int) ((long) (b + 1) * entries / buckets);
+            for (int c = 0; c < mChannels; c++) {
+                int lo = Integer.MAX_VALUE;
+                int hi = Integer.MIN_VALUE;
+                for (int e = from; e < to; e++) {
+                    lo = Math.min(lo, mIndex.getMin(e, c));
+                    hi = Math.max(hi, mIndex.getMax(e, c));
+                }
+                min[b * mChannels + c] = lo;
+                max[b * mChannels + c] = hi;
+            }
+        }
+        return buckets;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    // Reads, checks and decodes the chunk of an index entry.
+    private void loadChunk(int entry) throws IOException {
+        final long offset = mIndex.getOffset(entry);
+        readFully(mChunk, offset, SessionRecorder.CHUNK_HEADER_SIZE);
+        final int length = SessionRecorder.CHUNK_HEADER_SIZE + mChunk.getInt(16);
+        if (mChunk.getInt(0) != SessionRecorder.CHUNK_MAGIC || length > mChunk.capacity()
+                || mChunk.getInt(12) != mIndex.getFrames(entry)
+                || mChunk.getLong(20) != mIndex.getFirstFrame(entry)) {
+            throw new IOException("index does not match chunk at " + offset);
+        }
+        readFully(mChunk, offset, length);
+        if (SessionRecorder.chunkCrc(mCrc, mChunk.array(), 0, length)
+                != mChunk.getInt(SessionRecorder.CHUNK_CRC_OFFSET)) {
+            throw new IOException("corrupt chunk at " + offset);
+        }
+        decode(length);
+        mDecodedEntry = entry;
+    }
+
+    // Decodes the chunk in mChunk into mSamples and mFlags.
+    private void decode(int length) throws IOException {
+        final int frames = mChunk.getInt(12);
+        final boolean hasFlags = (mChunk.getInt(8) & SessionRecorder.CHUNK_FLAG_FRAME_FLAGS) != 0;
+        final int samplesEnd = hasFlags ? length - frames : length;
+        final int encoding = mChunk.getInt(4);
+        if (encoding == SessionRecorder.ENCODING_RICE) {
+            mCodec.decode(mChunk.array(), SessionRecorder.CHUNK_HEADER_SIZE,
+                    samplesEnd - SessionRecorder.CHUNK_HEADER_SIZE, frames, mSamples);
+        } else if (encoding == SessionRecorder.ENCODING_RAW) {
+            final int samples = frames * mChannels;
+            if (SessionRecorder.CHUNK_HEADER_SIZE + samples * 4 > samplesEnd) {
+                throw new IOException("truncated raw chunk");
+            }
+            mChunk.position(SessionRecorder.CHUNK_HEADER_SIZE);
+            for (int i = 0; i < samples; i++) mSamples[i] = mChunk.getInt();
+        } else {
+            throw new IOException("unknown chunk encoding " + encoding);
+        }
+        for (int f = 0; f < frames; f++) {
+            mFlags[f] = hasFlags ? mChunk.get(samplesEnd + f) & 0xFF : 0;
+        }
+        mDecodedEntry = -1;
+    }
+
+    // Adds index entries for the chunks after the last indexed one, up to 'expected' of them,
+    // stopping at the first chunk that does not check out.
+    private void rebuildIndex(int expected) throws IOException {
+        final long size = mChannel.size();
+        long position = SessionHeader.HEADER_SIZE;
+        long nextFrame = 0;
+        final int indexed = mIndex.size();
+        if (indexed > 0) {
+            position = mIndex.getOffset(indexed - 1);
+            if (position + SessionRecorder.CHUNK_HEADER_SIZE > size) return;
+            readFully(mChunk, position, SessionRecorder.CHUNK_HEADER_SIZE);
+            position += SessionRecorder.CHUNK_HEADER_SIZE + mChunk.getInt(16);
+            nextFrame = mIndex.getFrameCount();
+        }
+
+        final int[] min = new int[mChannels];
+        final int[] max = new int[mChannels];
+        while (mIndex.size() < expected && position + SessionRecorder.CHUNK_HEADER_SIZE <= size) {
+            readFully(mChunk, position, SessionRecorder.CHUNK_HEADER_SIZE);
+            final int magic = mChunk.getInt(0);
+            final int frames = mChunk.getInt(12);
+            final int payloadLength = mChunk.getInt(16);
+            final int length = SessionRecorder.CHUNK_HEADER_SIZE + payloadLength;
+            if (magic != SessionRecorder.CHUNK_MAGIC && magic != SessionRecorder.COMMIT_MAGIC) {
+                break;
+            }
+            if (payloadLength < 0 || length > mChunk.capacity() || position + length > size
+                    || mChunk.getLong(20) != nextFrame) {
+                break;
+            }
+            if (magic == SessionRecorder.COMMIT_MAGIC) {
+                position += length;
+                continue;
+            }
+            if (frames < 1 || frames > mHeader.getChunkFrames()) break;
+            readFully(mChunk, position, length);
+            if (SessionRecorder.chunkCrc(mCrc, mChunk.array(), 0, length)
+                    != mChunk.getInt(SessionRecorder.CHUNK_CRC_OFFSET)) {
+                break;
+            }
+            decode(length);
+            for (int c = 0; c < mChannels; c++) {
+                min[c] = Integer.MAX_VALUE;
+                max[c] = Integer.MIN_VALUE;
+            }
+            for (int f = 0, i = 0; f < frames; f++) {
+                for (int c = 0; c < mChannels; c++, i++) {
+                    min[c] = Math.min(min[c], mSamples[i]);
+                    max[c] = Math.max(max[c], mSamples[i]);
+                }
+            }
+            mIndex.add(nextFrame, position, frames, min, max);
+            nextFrame += frames;
+            position += length;
+        }
+    }
+
+    // Reads 'length' bytes at 'position' in the file into the start of 'buffer'.
+    private void readFully(ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            final int n = mChannel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("unexpected end of file");
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Records a sample stream into a session file: a {@code SessionHeader} followed by chunks of
+ * {@code getChunkFrames()} frames (fewer when a chunk is cut short by an explicit sync or by
+ * close).
+ *
+ * Chunk layout, little-endian:
+ *   0    magic "CHNK"
+ *   4    payload encoding, {@code ENCODING_RAW} or {@code ENCODING_RICE}
+ *   8    chunk flags
+ *   12   frame count
+ *   16   payload length in bytes
+ *   20   index of the first frame in the session
+ *   28   CRC32 of bytes 0-27 and the payload
+ *   32   payload: the samples, followed by one byte of {@code SampleRingBuffer} flags per frame
+ *        if {@code CHUNK_FLAG_FRAME_FLAGS} is set
+ *
+ * Raw samples are frame count x channel count int32s, interleaved. Rice-coded samples are a
+ * {@code SampleCodec} block; a chunk that would not get smaller that way is stored raw.
+ *
+ * Every sync appends a commit marker, a chunk with magic "CMIT", no frames, the number of
+ * frames committed in place of the first frame, and a payload holding the number of data chunks
+ * before it and the time of the sync. When and how often to sync is set by a {@code SyncPolicy}.
+ * A file that was never closed is repaired by {@code SessionRecovery}.
+ *
+ * Alongside the file the recorder writes a {@code SessionIndex} with each data chunk's offset,
+ * first frame and per-channel min/max, which {@code SessionReader} uses to seek without scanning.
+ * It is flushed on every sync, so it may lag the data after a crash but never runs ahead of it.
+ *
+ * The file is written through a memory mapping that is extended {@code MAP_STEP} bytes at a
+ * time, so appending a chunk is a copy into memory and the kernel writes it back in the
+ * background. Chunks are encoded, and their checksum computed, in a reused staging buffer;
+ * nothing is allocated per frame. On close the totals are written to the header and the file is
+ * truncated to its real length. Meant to be driven by a {@code SampleStreamWriter}.
+ */
+public class SessionRecorder implements SampleSink {
+    public static final String FILE_EXTENSION = ".obr";
+
+    public static final int CHUNK_MAGIC = 0x4B4E4843;
+    public static final int COMMIT_MAGIC = 0x54494D43;
+    public static final int CHUNK_HEADER_SIZE = 32;
+    //offset of the CRC in the chunk header; the CRC covers everything but itself
+    public static final int CHUNK_CRC_OFFSET = 28;
+    public static final int COMMIT_PAYLOAD_SIZE = 12;
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_RICE = 1;
+    //the payload ends with a byte of flags per frame; omitted when every frame's flags are 0
+    public static final int CHUNK_FLAG_FRAME_FLAGS = 0x01;
+
+    public static final int DEFAULT_CHUNK_FRAMES = 256;
+
+    //the mapping grows in steps this large, so remapping is rare
+    private static final long MAP_STEP = 8 * 1024 * 1024;
+
+    private final File mFile;
+    private final SessionHeader mHeader;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final int mChannels;
+    private final int mChunkFrames;
+    private final int mEncoding;
+    private final SampleCodec mCodec;
+    private final SyncPolicy mSyncPolicy;
+    private final CRC32 mCrc = new CRC32();
+    private final SessionIndex.Writer mIndex;
+    private final int[] mChunkMin;
+    private final int[] mChunkMax;
+    private long mLastSyncMillis;
+
+    //frames accumulated for the next chunk
+    private final int[] mChunkSamples;
+    private final int[] mChunkFlags;
+    private int mChunkFill;
+
+    //one encoded chunk
+    private final ByteBuffer mStaging;
+
+    private MappedByteBuffer mMap;
+    private long mMapStart;
+    //file offset the next chunk is written at
+    private long mPosition;
+    private long mFramesWritten;
+    private int mChunksWritten;
+    private boolean mClosed;
+
+    /**
+     * Creates (or overwrites) the file, writing Rice-coded chunks and syncing every second.
+     */
+    public SessionRecorder(File file, SessionHeader header) throws IOException {
+        this(file, header, ENCODING_RICE, SyncPolicy.interval(1000));
+    }
+
+    /**
+     * Creates (or overwrites) the file and writes a provisional header.
+     *
+     * @param encoding {@code ENCODING_RAW} or {@code ENCODING_RICE}.
+     */
+    public SessionRecorder(File file, SessionHeader header, int encoding, SyncPolicy syncPolicy)
+            throws IOException {
+        mFile = file;
+        mHeader = header;
+        mEncoding = encoding;
+        mSyncPolicy = syncPolicy;
+        mChannels = header.getChannelCount();
+        mChunkFrames = header.getChunkFrames();
+        mChunkSamples = new int[mChunkFrames * mChannels];
+        mChunkFlags = new int[mChunkFrames];
+        mChunkMin = new int[mChannels];
+        mChunkMax = new int[mChannels];
+        mCodec = encoding == ENCODING_RICE ? new SampleCodec(mChannels, mChunkFrames) : null;
+        mStaging = ByteBuffer.allocate(Math.max(maxChunkSize(mChannels, mChunkFrames),
+                CHUNK_HEADER_SIZE + SampleCodec.maxEncodedSize(mChannels, mChunkFrames)
+                        + mChunkFrames))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mChannel.truncate(0);
+        writeHeader();
+        mChannel.force(true);
+        mPosition = SessionHeader.HEADER_SIZE;
+        try {
+            mIndex = new SessionIndex.Writer(SessionIndex.fileFor(file), mChannels);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mLastSyncMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The largest number of bytes a chunk can take. Rice-coded chunks are never larger
+     *         than raw ones.
+     */
+    public static int maxChunkSize(int channels, int chunkFrames) {
+        return CHUNK_HEADER_SIZE + chunkFrames * channels * 4 + chunkFrames;
+    }
+
+    @Override
+    public void writeFrames(int[] frames, int[] flags, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            final int n = Math.min(count - offset, mChunkFrames - mChunkFill);
+            System.arraycopy(frames, offset * mChannels, mChunkSamples, mChunkFill * mChannels,
+                    n * mChannels);
+            System.arraycopy(flags, offset, mChunkFlags, mChunkFill, n);
+            mChunkFill += n;
+            offset += n;
+            if (mChunkFill == mChunkFrames) {
+                writeChunk();
+                final long now = System.currentTimeMillis();
+                if (mSyncPolicy.shouldSync(now, mLastSyncMillis)) sync(now);
+            }
+        }
+    }
+
+    /**
+     * Writes out the frames accumulated so far, even if that makes a short chunk, and forces
+     * everything to storage behind a commit marker.
+     */
+    @Override
+    public void sync() throws IOException {
+        if (mChunkFill > 0) writeChunk();
+        sync(System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            if (mChunkFill > 0) writeChunk();
+            sync(System.currentTimeMillis());
+            mMap = null;
+            mChannel.truncate(mPosition);
+            mHeader.setFrameCount(mFramesWritten);
+            mHeader.setChunkCount(mChunksWritten);
+            mHeader.setFlags(mHeader.getFlags() | SessionHeader.FLAG_COMPLETE);
+            writeHeader();
+            mChannel.force(true);
+        } finally {
+            try {
+                mIndex.close();
+            } finally {
+                mRandomAccessFile.close();
+            }
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public SessionHeader getHeader() {
+        return mHeader;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten + mChunkFill;
+    }
+
+    /**
+     * @return Bytes of the file in use so far, excluding mapped space not yet written.
+     */
+    public long getBytesWritten() {
+        return mPosition;
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SessionHeader.HEADER_SIZE);
+        mHeader.write(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining()) mChannel.write(buffer, buffer.position());
+    }
+
+    private void sync(long nowMillis) throws IOException {
+        mStaging.clear();
+        mStaging.putLong(CHUNK_HEADER_SIZE, nowMillis);
+        mStaging.putInt(CHUNK_HEADER_SIZE + 8, mChunksWritten);
+        appendChunk(COMMIT_MAGIC, 0, 0, 0, COMMIT_PAYLOAD_SIZE, mFramesWritten);
+        mMap.force();
+        mIndex.flush();
+        mLastSyncMillis = nowMillis;
+    }
+
+    private void writeChunk() throws IOException {
+        final int frames = mChunkFill;
+        boolean hasFlags = false;
+        for (int f = 0; f < frames; f++) {
+            if (mChunkFlags[f] != 0) {
+                hasFlags = true;
+                break;
+            }
+        }
+
+        mStaging.clear();
+        final int samples = frames * mChannels;
+        int encoding = ENCODING_RAW;
+        if (mCodec != null) {
+            final int end = mCodec.encode(mChunkSamples, frames, mStaging.array(),
+                    CHUNK_HEADER_SIZE);
+            if (end - CHUNK_HEADER_SIZE < samples * 4) {
+                encoding = ENCODING_RICE;
+                mStaging.position(end);
+            }
+        }
+        if (encoding == ENCODING_RAW) {
+            mStaging.position(CHUNK_HEADER_SIZE);
+            for (int i = 0; i < samples; i++) mStaging.putInt(mChunkSamples[i]);
+        }
+        if (hasFlags) {
+            for (int f = 0; f < frames; f++) mStaging.put((byte) mChunkFlags[f]);
+        }
+        final int payloadLength = mStaging.position() - CHUNK_HEADER_SIZE;
+        final long offset = mPosition;
+        appendChunk(CHUNK_MAGIC, encoding, hasFlags ? CHUNK_FLAG_FRAME_FLAGS : 0, frames,
+                payloadLength, mFramesWritten);
+        updateRange(frames);
+        mIndex.append(mFramesWritten, offset, frames, mChunkMin, mChunkMax);
+        mFramesWritten += frames;
+        mChunksWritten++;
+        mChunkFill = 0;
+    }
+
+    // Computes each channel's min and max over the chunk for the index.
+    private void updateRange(int frames) {
+        for (int c = 0; c < mChannels; c++) {
+            mChunkMin[c] = Integer.MAX_VALUE;
+            mChunkMax[c] = Integer.MIN_VALUE;
+        }
+        int i = 0;
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < mChannels; c++, i++) {
+                final int v = mChunkSamples[i];
+                if (v < mChunkMin[c]) mChunkMin[c] = v;
+                if (v > mChunkMax[c]) mChunkMax[c] = v;
+            }
+        }
+    }
+
+    // Fills in the header of the chunk whose payload is in the staging buffer, checksums it and
+    // copies it into the mapping.
+    private void appendChunk(int magic, int encoding, int flags, int frames, int payloadLength,
+                             long firstFrame) throws IOException {
+        mStaging.putInt(0, magic);
+        mStaging.putInt(4, encoding);
+        mStaging.putInt(8, flags);
+        mStaging.putInt(12, frames);
+        mStaging.putInt(16, payloadLength);
+        mStaging.putLong(20, firstFrame);
+        final int length = CHUNK_HEADER_SIZE + payloadLength;
+        mStaging.putInt(CHUNK_CRC_OFFSET, chunkCrc(mCrc, mStaging.array(), 0, length));
+        mStaging.limit(length);
+        mStaging.position(0);
+
+        ensureMapped(length);
+        mMap.position((int) (mPosition - mMapStart));
+        mMap.put(mStaging);
+        mPosition += length;
+    }
+
+    /**
+     * @return The CRC32 of a chunk of {@code length} bytes at {@code offset}, skipping the CRC
+     *         field itself.
+     */
+    public static int chunkCrc(CRC32 crc, byte[] chunk, int offset, int length) {
+        crc.reset();
+        crc.update(chunk, offset, CHUNK_CRC_OFFSET);
+        crc.update(chunk, offset + CHUNK_HEADER_SIZE, length - CHUNK_HEADER_SIZE);
+        return (int) crc.getValue();
+    }
+
+    // Makes sure the next 'length' bytes from mPosition are mapped, mapping a new region
+    // (which also extends the file) when they are not.
+    private void ensureMapped(int length) throws IOException {
+        if (mMap != null && mPosition + length <= mMapStart + mMap.capacity()) return;
+        //the old region is dropped, so it must not take unsynced chunks with it
+        if (mMap != null) mMap.force();
+        mMapStart = mPosition;
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, mMapStart,
+                Math.max(MAP_STEP, length));
+    }
+}
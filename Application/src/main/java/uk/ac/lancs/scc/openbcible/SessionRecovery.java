@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Repairs session files that were never closed, e.g. because the app was killed while
+ * recording. The chunks are scanned from the start and checked (magic, length, CRC, frame
+ * numbering); the file is truncated after the last valid one and the header totals are
+ * rewritten from what survived, with {@code SessionHeader.FLAG_RECOVERED} set. The sidecar
+ * {@code SessionIndex} is cut to the chunks kept.
+ */
+public class SessionRecovery {
+    /**
+     * What a recovery scan found.
+     */
+    public static class Result {
+        //false if the file was complete and left alone
+        public boolean recovered;
+        public long frames;
+        public int chunks;
+        //file length kept, and bytes cut off after the last valid chunk
+        public long validLength;
+        public long truncatedBytes;
+        //end of the last commit marker, i.e. what was known to be on storage
+        public long committedLength;
+    }
+
+    private SessionRecovery() {
+    }
+
+    /**
+     * Recovers {@code file} if its header says it was not closed.
+     *
+     * @throws IOException If it is not a session file or cannot be rewritten.
+     */
+    public static Result recoverIfNeeded(File file) throws IOException {
+        final Result result = new Result();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer headerBuffer = ByteBuffer.allocate(SessionHeader.HEADER_SIZE);
+            readFully(channel, headerBuffer, 0);
+            headerBuffer.flip();
+            final SessionHeader header = SessionHeader.read(headerBuffer);
+            if ((header.getFlags() & SessionHeader.FLAG_COMPLETE) != 0) {
+                result.validLength = channel.size();
+                result.committedLength = result.validLength;
+                return result;
+            }
+
+            scan(channel, header, result);
+            result.recovered = true;
+            result.truncatedBytes = channel.size() - result.validLength;
+            channel.truncate(result.validLength);
+            //the index was flushed no later than the data, so it can only be too long
+            SessionIndex.truncate(SessionIndex.fileFor(file), header.getChannelCount(),
+                    result.chunks);
+
+            header.setFrameCount(result.frames);
+            header.setChunkCount(result.chunks);
+            header.setFlags(header.getFlags()
+                    | SessionHeader.FLAG_COMPLETE | SessionHeader.FLAG_RECOVERED);
+            headerBuffer.clear();
+            header.write(headerBuffer);
+            headerBuffer.flip();
+            while (headerBuffer.hasRemaining()) channel.write(headerBuffer, headerBuffer.position());
+            channel.force(true);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Walks the chunks, stopping at the first one that is missing, torn or out of sequence.
+    private static void scan(FileChannel channel, SessionHeader header, Result result)
+            throws IOException {
+        final int maxChunk = SessionRecorder.CHUNK_HEADER_SIZE
+                + SampleCodec.maxEncodedSize(header.getChannelCount(), header.getChunkFrames())
+                + header.getChunkFrames();
+        final ByteBuffer chunk = ByteBuffer.allocate(Math.max(maxChunk,
+                SessionRecorder.maxChunkSize(header.getChannelCount(), header.getChunkFrames())))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+        final long size = channel.size();
+        long position = SessionHeader.HEADER_SIZE;
+        result.validLength = position;
+        result.committedLength = position;
+
+        while (position + SessionRecorder.CHUNK_HEADER_SIZE <= size) {
+            chunk.clear();
+            chunk.limit(SessionRecorder.CHUNK_HEADER_SIZE);
+            readFully(channel, chunk, position);
+            final int magic = chunk.getInt(0);
+            final int frames = chunk.getInt(12);
+            final int payloadLength = chunk.getInt(16);
+            final long firstFrame = chunk.getLong(20);
+            final int length = SessionRecorder.CHUNK_HEADER_SIZE + payloadLength;
+            if (magic != SessionRecorder.CHUNK_MAGIC && magic != SessionRecorder.COMMIT_MAGIC) {
+                break;
+            }
+            if (payloadLength < 0 || length > chunk.capacity() || position + length > size) {
+                break;
+            }
+            if (firstFrame != result.frames) break;
+            if (magic == SessionRecorder.CHUNK_MAGIC
+                    && (frames < 1 || frames > header.getChunkFrames())) {
+                break;
+            }
+            chunk.limit(length);
+            readFully(channel, chunk, position);
+            if (SessionRecorder.chunkCrc(crc, chunk.array(), 0, length)
+                    != chunk.getInt(SessionRecorder.CHUNK_CRC_OFFSET)) {
+                break;
+            }
+
+            position += length;
+            if (magic == SessionRecorder.CHUNK_MAGIC) {
+                result.frames += frames;
+                result.chunks++;
+            } else {
+                result.committedLength = position;
+            }
+            result.validLength = position;
+        }
+    }
+
+    // Reads until the buffer's limit, from 'position' in the file.
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("unexpected end of file");
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Keeps the recordings directory within a byte budget. Files are grouped into sessions: a
+ * segmented recording is its manifest plus its segments, and any other file (BDF+/EDF+, text,
+ * capture, exports) belongs to the session named by the part of its name before the first dot,
+ * with its sidecar index. Exports are named apart from their source
+ * ({@code CsvExporter.destinationFor}), so they are sessions of their own. When the recordings
+ * use more than the budget, whole sessions are deleted, those already exported first and then
+ * the oldest, never one being written or one the {@code SegmentCompactor} is working on.
+ *
+ * Which sessions have been exported is remembered in a small properties file in the directory.
+ * The methods do file I/O and should be called off the main thread; they are synchronized, so
+ * one thread can enforce the budget while another asks for usage. Has no Android dependencies.
+ */
+public class SessionStore {
+    private static final String STATE_FILE = "store.properties";
+    private static final String KEY_EXPORTED = ".exported";
+
+    /**
+     * The files of one recording.
+     */
+    public static class Session {
+        private final String mName;
+        private final List<File> mFiles = new ArrayList<File>();
+        private long mBytes;
+        private long mLastModified;
+        private boolean mExported;
+
+        Session(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public List<File> getFiles() {
+            return Collections.unmodifiableList(mFiles);
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return The time the newest file was last written; sessions are aged by this.
+         */
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public boolean isExported() {
+            return mExported;
+        }
+    }
+
+    //exported sessions go first, then the least recently written
+    private static final Comparator<Session> EVICTION_ORDER = new Comparator<Session>() {
+        @Override
+        public int compare(Session a, Session b) {
+            if (a.mExported != b.mExported) return a.mExported ? -1 : 1;
+            if (a.mLastModified != b.mLastModified) {
+                return a.mLastModified < b.mLastModified ? -1 : 1;
+            }
+            return a.mName.compareTo(b.mName);
+        }
+    };
+
+    private final File mDir;
+    private final Properties mState = new Properties();
+    private long mBudgetBytes;
+    private final Set<String> mActiveSessions = new HashSet<String>();
+    private SegmentCompactor mCompactor;
+
+    private List<Session> mSessions = new ArrayList<Session>();
+    private long mUsedBytes;
+    private long mEvictedSessions;
+    private long mEvictedBytes;
+
+    /**
+     * @param budgetBytes Most bytes the recordings may use, or 0 for no limit.
+     */
+    public SessionStore(File dir, long budgetBytes) {
+        mDir = dir;
+        mBudgetBytes = budgetBytes;
+        final File state = new File(dir, STATE_FILE);
+        if (state.isFile()) {
+            try {
+                final FileInputStream in = new FileInputStream(state);
+                try {
+                    mState.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                //only costs the exported marks
+                mState.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The session a recording file belongs to: its name up to the first dot.
+     */
+    public static String sessionName(File file) {
+        final String name = file.getName();
+        final int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * @return Bytes a recording of this many channels takes per second before it is compacted,
+     *         which is what must be free to record it.
+     */
+    public static double bytesPerSecond(float sampleRate, int channels) {
+        final int chunkFrames = SessionRecorder.DEFAULT_CHUNK_FRAMES;
+        //a commit marker per chunk is the worst case
+        final int chunkBytes = SessionRecorder.maxChunkSize(channels, chunkFrames)
+                + SessionRecorder.CHUNK_HEADER_SIZE + SessionRecorder.COMMIT_PAYLOAD_SIZE;
+        return sampleRate * chunkBytes / chunkFrames;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Changes the budget; takes effect at the next {@code enforceBudget}.
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Protects a session from eviction, e.g. a recording or capture being written, until
+     * {@code removeActiveSession}. Several may be active at once.
+     *
+     * @param name A {@code sessionName}.
+     */
+    public synchronized void addActiveSession(String name) {
+        mActiveSessions.add(name);
+    }
+
+    public synchronized void removeActiveSession(String name) {
+        mActiveSessions.remove(name);
+    }
+
+    /**
+     * Protects sessions the compactor still has work for from eviction.
+     *
+     * @param compactor May be null.
+     */
+    public synchronized void setCompactor(SegmentCompactor compactor) {
+        mCompactor = compactor;
+    }
+
+    /**
+     * Records that a session has been exported, making it the first to be evicted.
+     */
+    public synchronized void markExported(String name) throws IOException {
+        mState.setProperty(name + KEY_EXPORTED, "1");
+        for (Session session : mSessions) {
+            if (session.mName.equals(name)) session.mExported = true;
+        }
+        saveState();
+    }
+
+    /**
+     * Lists the sessions in the directory and totals their size.
+     */
+    public synchronized List<Session> scan() {
+        final File[] files = mDir.listFiles();
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        final Map<String, String> segmentOwners = new HashMap<String, String>();
+        long used = 0;
+        if (files != null) {
+            //segment files are named after their manifest plus a number, so ask the manifests
+            for (File file : files) {
+                if (!file.getName().endsWith(SessionManifest.FILE_EXTENSION)) continue;
+                try {
+                    final SessionManifest manifest = SessionManifest.load(file);
+                    for (int i = 0; i < manifest.getSegmentCount(); i++) {
+                        segmentOwners.put(sessionName(manifest.getSegmentFile(i)),
+                                sessionName(file));
+                    }
+                } catch (IOException e) {
+                    //its segments become sessions of their own
+                }
+            }
+            for (File file : files) {
+                if (!file.isFile() || file.getName().equals(STATE_FILE)) continue;
+                String name = sessionName(file);
+                final String owner = segmentOwners.get(name);
+                if (owner != null) name = owner;
+                Session session = sessions.get(name);
+                if (session == null) {
+                    session = new Session(name);
+                    session.mExported = mState.getProperty(name + KEY_EXPORTED) != null;
+                    sessions.put(name, session);
+                }
+                final long length = file.length();
+                session.mFiles.add(file);
+                session.mBytes += length;
+                session.mLastModified = Math.max(session.mLastModified, file.lastModified());
+                used += length;
+            }
+        }
+        mSessions = new ArrayList<Session>(sessions.values());
+        Collections.sort(mSessions, EVICTION_ORDER);
+        mUsedBytes = used;
+        return Collections.unmodifiableList(mSessions);
+    }
+
+    /**
+     * @return Bytes used by recordings at the last {@code scan}.
+     */
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * @return The sessions found by the last {@code scan}, in eviction order.
+     */
+    public synchronized List<Session> getSessions() {
+        return Collections.unmodifiableList(mSessions);
+    }
+
+    /**
+     * @return Bytes that can still be recorded: what is left of the budget, or of the storage
+     *         if that is less, as of the last {@code scan}.
+     */
+    public synchronized long getAvailableBytes() {
+        long available = mDir.getUsableSpace();
+        if (mBudgetBytes > 0) available = Math.min(available, mBudgetBytes - mUsedBytes);
+        return Math.max(0, available);
+    }
+
+    /**
+     * @return How long a stream of this rate and channel count can be recorded before the budget
+     *         (or the storage) runs out, assuming nothing is evicted.
+     */
+    public synchronized long getRemainingRecordingMillis(float sampleRate, int channels) {
+        return (long) (getAvailableBytes() * 1000 / bytesPerSecond(sampleRate, channels));
+    }
+
+    /**
+     * Picks the sessions to delete so that the recordings use at most the budget less
+     * {@code reserveBytes}, without deleting anything.
+     */
+    public synchronized List<Session> selectEvictions(long reserveBytes) {
+        final List<Session> evictions = new ArrayList<Session>();
+        if (mBudgetBytes <= 0) return evictions;
+        long excess = mUsedBytes + reserveBytes - mBudgetBytes;
+        for (Session session : mSessions) {
+            if (excess <= 0) break;
+            if (mActiveSessions.contains(session.mName) || isCompacting(session)) continue;
+            evictions.add(session);
+            excess -= session.mBytes;
+        }
+        return evictions;
+    }
+
+    /**
+     * Rescans and deletes sessions until the recordings use at most the budget less
+     * {@code reserveBytes}, e.g. room for the next segment.
+     *
+     * @return The number of bytes freed.
+     */
+    public synchronized long enforceBudget(long reserveBytes) {
+        scan();
+        long freed = 0;
+        final List<Session> evictions = selectEvictions(reserveBytes);
+        for (Session session : evictions) {
+            //the manifest goes first, so a half-deleted session is never listed as whole
+            final List<File> files = new ArrayList<File>(session.mFiles);
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    final boolean aManifest = a.getName().endsWith(SessionManifest.FILE_EXTENSION);
+                    final boolean bManifest = b.getName().endsWith(SessionManifest.FILE_EXTENSION);
+                    return aManifest == bManifest ? 0 : aManifest ? -1 : 1;
+                }
+            });
+            for (File file : files) {
+                final long length = file.length();
+                if (file.delete()) freed += length;
+            }
+            mState.remove(session.mName + KEY_EXPORTED);
+            mEvictedSessions++;
+        }
+        mEvictedBytes += freed;
+        if (!evictions.isEmpty()) {
+            try {
+                saveState();
+            } catch (IOException e) {
+                //stale marks only matter if a session of the same name is recorded again
+            }
+            scan();
+        }
+        return freed;
+    }
+
+    private boolean isCompacting(Session session) {
+        if (mCompactor == null) return false;
+        for (File file : session.mFiles) {
+            if (file.getName().endsWith(SessionManifest.FILE_EXTENSION)
+                    && mCompactor.isBusy(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getEvictedSessions() {
+        return mEvictedSessions;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    private void saveState() throws IOException {
+        final FileOutputStream out = new FileOutputStream(new File(mDir, STATE_FILE));
+        try {
+            mState.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+/**
+ * When a recording forces what it has written to storage. Syncing more often loses less data if
+ * the app is killed, at the cost of more writes and wakeups.
+ */
+public class SyncPolicy {
+    //after every chunk
+    public static final int MODE_EVERY_BLOCK = 0;
+    //when at least the interval has passed since the last sync, checked as chunks are written
+    public static final int MODE_INTERVAL = 1;
+    //only when asked, e.g. when the app is paused, and on close
+    public static final int MODE_ON_PAUSE = 2;
+
+    private final int mMode;
+    private final long mIntervalMillis;
+
+    private SyncPolicy(int mode, long intervalMillis) {
+        mMode = mode;
+        mIntervalMillis = intervalMillis;
+    }
+
+    public static SyncPolicy everyBlock() {
+        return new SyncPolicy(MODE_EVERY_BLOCK, 0);
+    }
+
+    public static SyncPolicy interval(long intervalMillis) {
+        return new SyncPolicy(MODE_INTERVAL, intervalMillis);
+    }
+
+    public static SyncPolicy onPause() {
+        return new SyncPolicy(MODE_ON_PAUSE, 0);
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * @return True if a block written at {@code nowMillis} should be followed by a sync.
+     */
+    public boolean shouldSync(long nowMillis, long lastSyncMillis) {
+        switch (mMode) {
+            case MODE_EVERY_BLOCK:
+                return true;
+            case MODE_INTERVAL:
+                return nowMillis - lastSyncMillis >= mIntervalMillis;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.Arrays;
+
+/**
+ * Live power spectral density of every channel by Welch's method. Samples are pushed as they
+ * arrive; every {@code hop} frames the latest {@code fftSize} samples of each channel are
+ * Hann-windowed, transformed with a shared {@code RealFft} plan and folded into a running
+ * average of periodograms. The average is cumulative until {@code averages} segments have been
+ * seen and exponential (weight {@code 1 / averages}) after that, so it keeps following the
+ * signal.
+ *
+ * The estimate is one-sided, in (input units)^2 / Hz, and is published per channel after every
+ * update. Readers copy just the bins of the channels they draw with {@code copySpectrum}, from
+ * any thread, and can skip the copy when {@code getSequence} has not changed. Pushing must be
+ * done from one thread; nothing is allocated after construction.
+ */
+public class WelchPsd {
+    private final int mChannels;
+    private final int mFftSize;
+    private final int mHop;
+    private final int mBins;
+    private final float mSampleRate;
+    private final int mAverages;
+
+    private final RealFft mFft;
+    private final double[] mWindow;
+    //turns |X|^2 into a one-sided density
+    private final double mScale;
+    private final double[] mSegment;
+    private final double[] mRe;
+    private final double[] mIm;
+
+    //the last fftSize samples of each channel, circular
+    private final float[] mHistory;
+    private int mHistoryPosition;
+    private long mSamplesSeen;
+    private int mSinceHop;
+
+    //running average, and the copy readers see
+    private final double[] mAverage;
+    private final float[] mPublished;
+    private long mSegments;
+    private volatile long mSequence;
+
+    /**
+     * @param fftSize Segment length, a power of two.
+     * @param hop Frames between segments, e.g. {@code fftSize / 2} for 50% overlap.
+     * @param averages Number of periodograms the average spans.
+     */
+    public WelchPsd(int channels, float sampleRate, int fftSize, int hop, int averages) {
+        if (hop < 1 || hop > fftSize) throw new IllegalArgumentException("bad hop " + hop);
+        mChannels = channels;
+        mSampleRate = sampleRate;
+        mFftSize = fftSize;
+        mHop = hop;
+        mAverages = Math.max(1, averages);
+        mFft = new RealFft(fftSize);
+        mBins = mFft.getBinCount();
+
+        mWindow = new double[fftSize];
+        double power = 0;
+        for (int i = 0; i < fftSize; i++) {
+            //periodic Hann, so overlapping windows add up evenly
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize);
+            power += mWindow[i] * mWindow[i];
+        }
+        mScale = 1 / (sampleRate * power);
+        mSegment = new double[fftSize];
+        mRe = new double[mBins];
+        mIm = new double[mBins];
+
+        mHistory = new float[channels * fftSize];
+        mAverage = new double[channels * mBins];
+        mPublished = new float[channels * mBins];
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getBinCount() {
+        return mBins;
+    }
+
+    /**
+     * @return The frequency of bin {@code bin} in Hz.
+     */
+    public float getBinFrequency(int bin) {
+        return bin * mSampleRate / mFftSize;
+    }
+
+    /**
+     * @return A counter that changes every time the spectra are updated.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return The number of segments averaged so far.
+     */
+    public long getSegmentCount() {
+        return mSegments;
+    }
+
+    /**
+     * Forgets the history and the average, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        mSamplesSeen = 0;
+        mSinceHop = 0;
+        mSegments = 0;
+        Arrays.fill(mAverage, 0);
+    }
+
+    /**
+     * Adds {@code count} interleaved frames starting at frame {@code offset}, updating the
+     * spectra each time a hop is complete.
+     */
+    public void push(float[] frames, int offset, int count) {
+        push(frames, offset, count, mChannels, 0);
+    }
+
+    /**
+     * Adds {@code count} frames of a wider stream: this estimator's channels are channels
+     * {@code firstChannel} onwards of frames {@code stride} channels wide.
+     */
+    public void push(float[] frames, int offset, int count, int stride, int firstChannel) {
+        for (int f = 0; f < count; f++) {
+            final int position = mHistoryPosition;
+            final int i = (offset + f) * stride + firstChannel;
+            for (int c = 0; c < mChannels; c++) mHistory[c * mFftSize + position] = frames[i + c];
+            mHistoryPosition = position + 1 == mFftSize ? 0 : position + 1;
+            mSamplesSeen++;
+            if (++mSinceHop >= mHop && mSamplesSeen >= mFftSize) {
+                mSinceHop = 0;
+                update();
+            }
+        }
+    }
+
+    /**
+     * Copies the latest spectrum of {@code channel}, {@code getBinCount()} values, into
+     * {@code dst} at {@code offset}.
+     *
+     * @return The sequence number of the copy.
+     */
+    public long copySpectrum(int channel, float[] dst, int offset) {
+        synchronized (mPublished) {
+            System.arraycopy(mPublished, channel * mBins, dst, offset, mBins);
+            return mSequence;
+        }
+    }
+
+    // Windows, transforms and averages the latest segment of every channel.
+    private void update() {
+        mSegments++;
+        //cumulative mean until the average is full, then exponential
+        final double weight = 1.0 / Math.min(mSegments, mAverages);
+        for (int c = 0; c < mChannels; c++) {
+            final int base = c * mFftSize;
+            //oldest sample first
+            for (int i = 0, p = mHistoryPosition; i < mFftSize; i++) {
+                mSegment[i] = mHistory[base + p] * mWindow[i];
+                if (++p == mFftSize) p = 0;
+            }
+            mFft.forward(mSegment, mRe, mIm);
+            final int out = c * mBins;
+            for (int k = 0; k < mBins; k++) {
+                double density = (mRe[k] * mRe[k] + mIm[k] * mIm[k]) * mScale;
+                //one-sided: every bin but DC and Nyquist stands for two
+                if (k != 0 && k != mBins - 1) density *= 2;
+                mAverage[out + k] += (density - mAverage[out + k]) * weight;
+            }
+        }
+        synchronized (mPublished) {
+            for (int i = 0; i < mAverage.length; i++) mPublished[i] = (float) mAverage[i];
+            mSequence++;
+        }
+    }
+}
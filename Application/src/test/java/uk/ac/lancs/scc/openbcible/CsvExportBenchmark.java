@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Exports a session file with {@code CsvExporter} on a desktop JVM and reports the time taken.
+ * Run against the unit test classpath.
+ */
+public class CsvExportBenchmark {
+    /**
+     * Usage: {@code CsvExportBenchmark <session or manifest file> [output file]}
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CsvExportBenchmark <session or manifest file> [output file]");
+            System.exit(2);
+        }
+        final File source = new File(args[0]);
+        final File destination = args.length > 1 ? new File(args[1]) : CsvExporter.destinationFor(source);
+        final CsvExporter exporter = new CsvExporter(source, destination, null);
+        final long start = System.nanoTime();
+        exporter.start();
+        exporter.join();
+        if (exporter.getError() != null) throw exporter.getError();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "%d frames to %s in %.3f s: %.0f frames/s",
+                exporter.getFramesWritten(), destination, seconds,
+                exporter.getFramesWritten() / seconds));
+    }
+}
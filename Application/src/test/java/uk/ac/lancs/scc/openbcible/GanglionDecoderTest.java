@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GanglionDecoderTest {
+    private GanglionDecoder mDecoder;
+    private int[] mSamples;
+
+    @Before
+    public void setUp() {
+        mDecoder = new GanglionDecoder();
+        mSamples = new int[GanglionDecoder.NUM_CHANNELS * GanglionDecoder.MAX_SAMPLES_PER_PACKET];
+    }
+
+    @Test
+    public void rawPacketSeedsSignExtendedSamples() {
+        final byte[] packet = rawPacket(0, -1, 8388607, -8388608);
+        assertFalse(mDecoder.isSeeded());
+        assertEquals(1, mDecoder.decode(packet, packet.length, mSamples));
+        assertTrue(mDecoder.isSeeded());
+        assertEquals(0, mDecoder.getLastPacketId());
+        assertEquals(GanglionDecoder.PACKET_TYPE_RAW, mDecoder.getLastPacketType());
+        assertArrayEquals(new int[]{0, -1, 8388607, -8388608}, Arrays.copyOfRange(mSamples, 0, 4));
+    }
+
+    @Test
+    public void rawPacketReplacesRunningValues() {
+        decodeRaw(1000, 2000, 3000, 4000);
+        decode(compressedPacket(1, 18, new int[]{2, 4, 6, 8, 10, 12, 14, 16}));
+        decodeRaw(-5, -6, -7, -8);
+        assertArrayEquals(new int[]{-5, -6, -7, -8}, Arrays.copyOfRange(mSamples, 0, 4));
+        decode(compressedPacket(2, 18, new int[]{0, 0, 0, 0, -1, -3, -5, -7}));
+        assertArrayEquals(new int[]{-5, -6, -7, -8, -4, -3, -2, -1}, mSamples);
+    }
+
+    @Test
+    public void shortRawPacketIsIgnored() {
+        final byte[] packet = rawPacket(1, 2, 3, 4);
+        assertEquals(0, mDecoder.decode(packet, 12, mSamples));
+        assertFalse(mDecoder.isSeeded());
+    }
+
+    @Test
+    public void decodes18BitDeltas() {
+        decodeRaw(0, 100000, -100000, 5);
+        //the largest deltas of each sign: positive ones are even, negative ones odd
+        final int[] deltas = {131070, -131071, 2, -1, -131071, 131070, 0, 4};
+        assertEquals(2, decode(compressedPacket(1, 18, deltas)));
+        assertEquals(GanglionDecoder.PACKET_TYPE_18BIT, mDecoder.getLastPacketType());
+        assertArrayEquals(expected(new int[]{0, 100000, -100000, 5}, deltas), mSamples);
+    }
+
+    @Test
+    public void decodes19BitDeltas() {
+        decodeRaw(-3000000, 3000000, 0, 0);
+        final int[] deltas = {262142, -262143, -262143, 262142, 8, -9, 0, -1};
+        assertEquals(2, decode(compressedPacket(101, 19, deltas)));
+        assertEquals(GanglionDecoder.PACKET_TYPE_19BIT, mDecoder.getLastPacketType());
+        assertArrayEquals(expected(new int[]{-3000000, 3000000, 0, 0}, deltas), mSamples);
+    }
+
+    @Test
+    public void deltasAccumulateAcrossPackets() {
+        decodeRaw(10, 20, 30, 40);
+        for (int id = 1; id <= 100; id++) {
+            decode(compressedPacket(id, 18, new int[]{2, 2, 2, 2, -1, -1, -1, -1}));
+        }
+        //each packet subtracts 2 then adds 1
+        assertArrayEquals(new int[]{-90, -80, -70, -60}, Arrays.copyOfRange(mSamples, 4, 8));
+    }
+
+    @Test
+    public void compressedPacketsBeforeSeedAreRelativeToZero() {
+        decode(compressedPacket(1, 18, new int[]{2, 4, 6, 8, -1, -1, -1, -1}));
+        assertFalse(mDecoder.isSeeded());
+        assertArrayEquals(new int[]{-2, -4, -6, -8, -1, -3, -5, -7}, mSamples);
+    }
+
+    @Test
+    public void truncatedCompressedPacketIsIgnored() {
+        final byte[] packet = compressedPacket(101, 19, new int[8]);
+        assertEquals(0, mDecoder.decode(packet, 19, mSamples));
+    }
+
+    @Test
+    public void nonSamplePacketsDecodeNothing() {
+        decodeRaw(1, 2, 3, 4);
+        final byte[] packet = new byte[GanglionDecoder.PACKET_LENGTH];
+        packet[0] = (byte) 201;
+        assertEquals(0, decode(packet));
+        assertEquals(GanglionDecoder.PACKET_TYPE_IMPEDANCE, mDecoder.getLastPacketType());
+        packet[0] = (byte) 206;
+        assertEquals(0, decode(packet));
+        assertEquals(GanglionDecoder.PACKET_TYPE_MESSAGE, mDecoder.getLastPacketType());
+        packet[0] = (byte) 255;
+        assertEquals(0, decode(packet));
+        assertEquals(GanglionDecoder.PACKET_TYPE_UNKNOWN, mDecoder.getLastPacketType());
+        assertEquals(255, mDecoder.getLastPacketId());
+        //the running values are untouched
+        decode(compressedPacket(1, 18, new int[8]));
+        assertArrayEquals(new int[]{1, 2, 3, 4, 1, 2, 3, 4}, mSamples);
+    }
+
+    @Test
+    public void resetForgetsSeed() {
+        decodeRaw(1, 2, 3, 4);
+        mDecoder.reset();
+        assertFalse(mDecoder.isSeeded());
+        assertEquals(-1, mDecoder.getLastPacketId());
+        decode(compressedPacket(1, 18, new int[8]));
+        assertArrayEquals(new int[8], mSamples);
+    }
+
+    @Test
+    public void sampleNumbers() {
+        assertEquals(0, GanglionDecoder.getSampleNumber(0, 0));
+        assertEquals(1, GanglionDecoder.getSampleNumber(1, 0));
+        assertEquals(2, GanglionDecoder.getSampleNumber(1, 1));
+        assertEquals(199, GanglionDecoder.getSampleNumber(100, 0));
+        assertEquals(200, GanglionDecoder.getSampleNumber(100, 1));
+        assertEquals(1, GanglionDecoder.getSampleNumber(101, 0));
+        assertEquals(2, GanglionDecoder.getSampleNumber(101, 1));
+        assertEquals(200, GanglionDecoder.getSampleNumber(200, 1));
+    }
+
+    private void decodeRaw(int... values) {
+        decode(rawPacket(values[0], values[1], values[2], values[3]));
+    }
+
+    private int decode(byte[] packet) {
+        return mDecoder.decode(packet, packet.length, mSamples);
+    }
+
+    private static byte[] rawPacket(int c0, int c1, int c2, int c3) {
+        final byte[] packet = new byte[GanglionDecoder.PACKET_LENGTH];
+        final int[] values = {c0, c1, c2, c3};
+        for (int c = 0; c < values.length; c++) {
+            packet[1 + c * 3] = (byte) (values[c] >> 16);
+            packet[2 + c * 3] = (byte) (values[c] >> 8);
+            packet[3 + c * 3] = (byte) values[c];
+        }
+        return packet;
+    }
+
+    // Packs the deltas MSB first, as the Ganglion firmware does. The firmware's fields carry the
+    // sign in their LSB, so only even non-negative and odd negative deltas can be represented.
+    private static byte[] compressedPacket(int id, int bits, int[] deltas) {
+        final byte[] packet = new byte[GanglionDecoder.PACKET_LENGTH];
+        packet[0] = (byte) id;
+        int bit = 8;
+        for (int delta : deltas) {
+            assertEquals("unrepresentable delta " + delta, delta < 0, (delta & 1) != 0);
+            for (int b = bits - 1; b >= 0; b--, bit++) {
+                if (((delta >> b) & 1) != 0) packet[bit >> 3] |= 0x80 >> (bit & 7);
+            }
+        }
+        return packet;
+    }
+
+    private static int[] expected(int[] seed, int[] deltas) {
+        final int channels = seed.length;
+        final int[] samples = new int[deltas.length];
+        final int[] last = seed.clone();
+        for (int i = 0; i < deltas.length; i++) {
+            last[i % channels] -= deltas[i];
+            samples[i] = last[i % channels];
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+    private static final int GATT_ERROR = 133;
+
+    // A clock that only moves when told to, running timers as it passes them.
+    private static class FakeHost implements GattOperationQueue.Host {
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+        private final List<Long> mDue = new ArrayList<Long>();
+        private long mNow;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMillis) {
+            mTasks.add(r);
+            mDue.add(mNow + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                if (mTasks.get(i) == r) {
+                    mTasks.remove(i);
+                    mDue.remove(i);
+                }
+            }
+        }
+
+        void advance(long millis) {
+            final long end = mNow + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mTasks.size(); i++) {
+                    if (mDue.get(i) <= end && (next < 0 || mDue.get(i) < mDue.get(next))) next = i;
+                }
+                if (next < 0) break;
+                mNow = mDue.remove(next);
+                mTasks.remove(next).run();
+            }
+            mNow = end;
+        }
+    }
+
+    // Logs its starts and outcome; refuses to start while 'refuse' is set.
+    private class FakeOperation extends GattOperationQueue.Operation {
+        final String name;
+        boolean refuse;
+        int starts;
+        Integer status;
+
+        FakeOperation(String name, int type, Object target) {
+            super(type, target);
+            this.name = name;
+        }
+
+        @Override
+        protected boolean start() {
+            starts++;
+            if (refuse) return false;
+            mLog.add("start " + name);
+            mStarted = this;
+            return true;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            assertEquals("completed twice", null, this.status);
+            this.status = status;
+            mLog.add("done " + name + " " + status);
+        }
+    }
+
+    private FakeHost mHost;
+    private GattOperationQueue mQueue;
+    private List<String> mLog;
+    private FakeOperation mStarted;
+
+    @Before
+    public void setUp() {
+        mHost = new FakeHost();
+        mQueue = new GattOperationQueue(mHost);
+        mLog = new ArrayList<String>();
+    }
+
+    @Test
+    public void runsOneOperationAtATime() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        final FakeOperation b = op("b", GattOperationQueue.TYPE_READ, "y");
+        final FakeOperation c = op("c", GattOperationQueue.TYPE_DESCRIPTOR_WRITE, "z");
+        mQueue.enqueue(a);
+        mQueue.enqueue(b);
+        mQueue.enqueue(c);
+        assertEquals(3, mQueue.getDepth());
+        assertEquals(0, b.starts);
+
+        assertTrue(mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", 0));
+        assertTrue(mQueue.complete(GattOperationQueue.TYPE_READ, "y", 0));
+        assertTrue(mQueue.complete(GattOperationQueue.TYPE_DESCRIPTOR_WRITE, null, 0));
+        assertLog("start a", "done a 0", "start b", "done b 0", "start c", "done c 0");
+        assertEquals(0, mQueue.getDepth());
+        assertEquals(3, mQueue.getMaxDepth());
+        assertEquals(3, mQueue.getCompletedCount());
+    }
+
+    @Test
+    public void ignoresCompletionsForOtherOperations() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_READ, "x");
+        mQueue.enqueue(a);
+        assertFalse(mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", 0));
+        assertFalse(mQueue.complete(GattOperationQueue.TYPE_READ, "y", 0));
+        assertEquals(null, a.status);
+        assertTrue(mQueue.complete(GattOperationQueue.TYPE_READ, "x", 0));
+        assertFalse(mQueue.complete(GattOperationQueue.TYPE_READ, "x", 0));
+    }
+
+    @Test
+    public void retriesAfterTimeoutThenFails() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_READ, "x");
+        a.setTimeout(100).setMaxAttempts(2);
+        final FakeOperation b = op("b", GattOperationQueue.TYPE_WRITE, "y");
+        mQueue.enqueue(a);
+        mQueue.enqueue(b);
+        mHost.advance(99);
+        assertEquals(1, a.starts);
+        mHost.advance(1);
+        assertEquals(2, a.starts);
+        mHost.advance(100);
+        assertEquals(Integer.valueOf(GattOperationQueue.STATUS_TIMEOUT), a.status);
+        assertEquals(1, b.starts);
+        assertEquals(2, mQueue.getTimeoutCount());
+        assertEquals(1, mQueue.getRetryCount());
+        assertEquals(1, mQueue.getFailedCount());
+    }
+
+    @Test
+    public void completionCancelsTimeout() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_READ, "x");
+        mQueue.enqueue(a.setTimeout(100));
+        mQueue.complete(GattOperationQueue.TYPE_READ, "x", 0);
+        mHost.advance(1000);
+        assertEquals(1, a.starts);
+        assertEquals(0, mQueue.getTimeoutCount());
+    }
+
+    @Test
+    public void retriesGattErrorsThenReportsThem() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        mQueue.enqueue(a.setMaxAttempts(3));
+        mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", GATT_ERROR);
+        mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", GATT_ERROR);
+        assertEquals(null, a.status);
+        mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", GATT_ERROR);
+        assertEquals(3, a.starts);
+        assertEquals(Integer.valueOf(GATT_ERROR), a.status);
+    }
+
+    @Test
+    public void retriesRefusedStartsAfterBackOff() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        a.refuse = true;
+        mQueue.enqueue(a);
+        assertEquals(1, a.starts);
+        a.refuse = false;
+        mHost.advance(50);
+        assertEquals(2, a.starts);
+        assertTrue(mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", 0));
+        assertEquals(Integer.valueOf(0), a.status);
+    }
+
+    @Test
+    public void rejectsOperationsTheStackKeepsRefusing() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        final FakeOperation b = op("b", GattOperationQueue.TYPE_WRITE, "y");
+        a.refuse = true;
+        mQueue.enqueue(a.setMaxAttempts(2));
+        mQueue.enqueue(b);
+        mHost.advance(1000);
+        assertEquals(2, a.starts);
+        assertEquals(Integer.valueOf(GattOperationQueue.STATUS_REJECTED), a.status);
+        assertEquals(1, b.starts);
+    }
+
+    @Test
+    public void coalescesQueuedReadsAndDescriptorWrites() {
+        final FakeOperation inFlight = op("r0", GattOperationQueue.TYPE_READ, "x");
+        final FakeOperation r1 = op("r1", GattOperationQueue.TYPE_READ, "x");
+        final FakeOperation r2 = op("r2", GattOperationQueue.TYPE_READ, "x");
+        final FakeOperation other = op("r3", GattOperationQueue.TYPE_READ, "y");
+        final FakeOperation w1 = op("w1", GattOperationQueue.TYPE_WRITE, "x");
+        final FakeOperation w2 = op("w2", GattOperationQueue.TYPE_WRITE, "x");
+        for (FakeOperation o : new FakeOperation[]{inFlight, r1, other, w1, w2, r2}) {
+            mQueue.enqueue(o);
+        }
+        //only the queued duplicate read goes; the one in flight and the writes stay
+        assertEquals(Integer.valueOf(GattOperationQueue.STATUS_CANCELLED), r1.status);
+        assertEquals(1, mQueue.getCoalescedCount());
+        assertEquals(5, mQueue.getDepth());
+        completeAll();
+        assertLog("start r0", "done r1 -3", "done r0 0", "start r3", "done r3 0", "start w1",
+                "done w1 0", "start w2", "done w2 0", "start r2", "done r2 0");
+    }
+
+    @Test
+    public void connectionPriorityCompletesOnStart() {
+        final FakeOperation p = op("p", GattOperationQueue.TYPE_CONNECTION_PRIORITY, null);
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        mQueue.enqueue(p);
+        mQueue.enqueue(a);
+        assertEquals(Integer.valueOf(0), p.status);
+        assertEquals(1, a.starts);
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        final FakeOperation a = op("a", GattOperationQueue.TYPE_WRITE, "x");
+        final FakeOperation b = op("b", GattOperationQueue.TYPE_WRITE, "y");
+        mQueue.enqueue(a.setTimeout(100));
+        mQueue.enqueue(b);
+        mQueue.clear();
+        assertEquals(Integer.valueOf(GattOperationQueue.STATUS_CANCELLED), a.status);
+        assertEquals(Integer.valueOf(GattOperationQueue.STATUS_CANCELLED), b.status);
+        assertEquals(0, mQueue.getDepth());
+        mHost.advance(1000);
+        assertEquals(1, a.starts);
+        assertEquals(0, b.starts);
+    }
+
+    @Test
+    public void completionCallbackMayQueueMoreWork() {
+        final FakeOperation follow = op("follow", GattOperationQueue.TYPE_WRITE, "y");
+        final FakeOperation a = new FakeOperation("a", GattOperationQueue.TYPE_WRITE, "x") {
+            @Override
+            protected void onComplete(int status) {
+                super.onComplete(status);
+                mQueue.enqueue(follow);
+            }
+        };
+        final FakeOperation b = op("b", GattOperationQueue.TYPE_WRITE, "z");
+        mQueue.enqueue(a);
+        mQueue.enqueue(b);
+        completeAll();
+        assertLog("start a", "done a 0", "start b", "done b 0", "start follow", "done follow 0");
+    }
+
+    @Test
+    public void measuresLatencyFromEnqueue() {
+        mQueue.enqueue(op("a", GattOperationQueue.TYPE_WRITE, "x"));
+        mQueue.enqueue(op("b", GattOperationQueue.TYPE_WRITE, "y"));
+        mHost.advance(10);
+        mQueue.complete(GattOperationQueue.TYPE_WRITE, "x", 0);
+        mHost.advance(20);
+        mQueue.complete(GattOperationQueue.TYPE_WRITE, "y", 0);
+        assertEquals(20, mQueue.getAverageLatencyMillis());
+        assertEquals(30, mQueue.getMaxLatencyMillis());
+    }
+
+    private FakeOperation op(String name, int type, Object target) {
+        return new FakeOperation(name, type, target);
+    }
+
+    // Completes whatever is in flight until the queue is empty.
+    private void completeAll() {
+        while (mQueue.getDepth() > 0) {
+            assertTrue(mQueue.complete(mStarted.getType(), mStarted.getTarget(), 0));
+        }
+    }
+
+    private void assertLog(String... expected) {
+        final Iterator<String> it = mLog.iterator();
+        for (String e : expected) {
+            assertTrue("missing " + e, it.hasNext());
+            assertEquals(e, it.next());
+        }
+        assertFalse("unexpected " + mLog, it.hasNext());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.lancs.scc.openbcible;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Replays a {@code RawPacketLog} through {@code ReplayTransport} on a desktop JVM and reports
+ * decode (and optionally recording) throughput. Run against the unit test classpath.
+ */
+public class ReplayBenchmark {
+    /**
+     * Usage: {@code ReplayBenchmark <log> [speed|max] [repeat] [session file]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println(
+                    "usage: ReplayBenchmark <log> [speed|max] [repeat] [session file]");
+            System.exit(2);
+        }
+        final float speed = args.length > 1 && !"max".equals(args[1])
+                ? Float.parseFloat(args[1]) : ReplayTransport.SPEED_UNLIMITED;
+        final int repeat = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final File output = args.length > 3 ? new File(args[3]) : null;
+
+        final RawPacketLog.Reader reader = new RawPacketLog.Reader(new File(args[0]));
+        //large enough that a recorder keeps up with an unpaced replay
+        final IngestPipeline pipeline = new IngestPipeline(1 << 20);
+        int source = -1;
+        while (source < 0 && reader.next()) source = reader.getSource();
+        if (source < 0) {
+            System.err.println("no sample stream in " + args[0]);
+            System.exit(1);
+        }
+        pipeline.startStream(source);
+        final SampleRingBuffer buffer = pipeline.getSampleBuffer();
+
+        SampleStreamWriter writer = null;
+        if (output != null) {
+            final SessionHeader header = SessionHeader.forSource(source, "replay", "replay",
+                    SessionRecorder.DEFAULT_CHUNK_FRAMES, reader.getStartTimeMillis());
+            writer = new SampleStreamWriter("recorder", buffer,
+                    new SessionRecorder(output, header), SessionRecorder.DEFAULT_CHUNK_FRAMES);
+            writer.start();
+        }
+
+        final ReplayTransport transport = new ReplayTransport(reader, pipeline, speed);
+        for (int i = 0; i < repeat; i++) {
+            final long framesBefore = buffer.getWriteSequence();
+            transport.run();
+            final double seconds = transport.getElapsedNanos() / 1e9;
+            final long frames = buffer.getWriteSequence() - framesBefore;
+            System.out.println(String.format(Locale.US,
+                    "run %d: %d packets, %d bytes, %d frames in %.3f s: %.0f packets/s,"
+                            + " %.0f frames/s, %.1fx real time, max late %.2f ms",
+                    i + 1, transport.getPacketCount(), transport.getByteCount(), frames,
+                    seconds, transport.getPacketCount() / seconds, frames / seconds,
+                    transport.getLogNanos() / 1e9 / seconds,
+                    transport.getMaxLateNanos() / 1e6));
+        }
+        if (writer != null) {
+            writer.stop();
+            System.out.println("recorded " + writer.getFramesWritten() + " frames, "
+                    + writer.getDroppedFrames() + " dropped"
+                    + (writer.getError() != null ? ", error " + writer.getError() : "")
+                    + ", " + output.length() + " bytes");
+        }
+        reader.close();
+    }
+}